@@ -1,27 +1,71 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
 
 public class BuiltinExecutable implements Executable, Runnable {
   /**
    * A set of all the builtin commands available
    */
   public static final HashSet<String> ALL_BUILTINS = new HashSet<String>(
-      Arrays.asList("cd", "echo", "pwd", "history", "source", "exit"));
+      Arrays.asList("cd", "echo", "pwd", "history", "source", "exit", "set", "cached", "watch", "parallel",
+          "complete", "z", "export", "unset", "timeout",
+          "limit", "jobs", "ps", "time",
+          "stats", "trace"));
+
+  /**
+   * The builtins which change the state of the executor, such as its directory,
+   * environment, options, or limits
+   */
+  public static final HashSet<String> STATE_BUILTINS = new HashSet<String>(
+      Arrays.asList("cd", "z", "set", "export", "unset", "limit"));
 
   private String cmd; // The command to run
   private String[] args; // All the arguments of the command
   private Thread thread; // The thread that the command is executed in
+  private volatile Thread runner; // The thread actually running the command, which may not be thread
+  private volatile boolean destroyed; // True once destroy() has been called
+  private volatile Executor nested; // The executor running a sourced script, if this is source
+  private volatile Executable child; // The command started by timeout, cached, time, or watch, null until then
+  private volatile ParallelMap map; // The items being run, if this is parallel
   private Optional<Integer> exitValue; // The return value of the command
   private Executor executor; // The executor that ran this command
   private String outputFile; // A file to direct output to
   private boolean appendOutput; // True to append output to an existing file, false to overwrite
+  private OutputStream outputStream; // A stream to direct output to, used instead of outputFile if set
+  private String inputFile; // A file to take input from
+  private byte[] inputData; // Input held in memory, used instead of inputFile if set
+  private CommandTimer timer; // Records how long this runs for, null unless it is part of a timed command
+  private Tracer tracer; // Records when this started and finished, null unless tracing
+  private long parseNanos; // How long parsing the line this came from took, 0 if it wasn't parsed
 
   /**
    * Construct a BuiltinExecutable
@@ -34,8 +78,20 @@ public class BuiltinExecutable implements Executable, Runnable {
     this.cmd = cmd;
     this.args = args;
     thread = new Thread(this);
+    // Builtins like watch run until interrupted, so one left in the background
+    // mustn't keep the shell from exiting
+    thread.setDaemon(true);
     exitValue = Optional.empty();
     this.executor = executor;
+    parseNanos = executor.parseNanos();
+    CommandTimer timing = executor.timer();
+    if (timing != null && timing.isTiming()) {
+      timer = timing;
+    }
+    tracer = Tracer.current();
+    if (tracer != null) {
+      tracer.add(this, joinCommand(this.words()), false, false);
+    }
   }
 
   @Override
@@ -53,14 +109,81 @@ public class BuiltinExecutable implements Executable, Runnable {
     thread.join();
   }
 
+  @Override
+  public void destroy() {
+    destroyed = true;
+    Thread running = runner;
+    if (running != null) {
+      running.interrupt();
+    }
+    Executor sourcing = nested;
+    if (sourcing != null) {
+      sourcing.interrupt();
+    }
+  }
+
   @Override
   public void redirectOutput(String file, boolean append) {
     outputFile = file;
     appendOutput = append;
+    outputStream = null;
+  }
+
+  @Override
+  public void redirectOutput(OutputStream stream) {
+    outputStream = stream;
   }
 
   @Override
   public void redirectInput(String file) {
+    inputFile = file;
+    inputData = null;
+  }
+
+  @Override
+  public void redirectInput(byte[] data) {
+    inputData = data;
+    inputFile = null;
+  }
+
+  /**
+   * Open the input of this command, for builtins which read input
+   * 
+   * @throws IOException If the input file can't be opened
+   * @return The input, either from memory, a file, or the terminal, which the
+   *         caller must close. Closing the terminal leaves it open, since the
+   *         shell reads its commands from it too
+   */
+  InputStream openInput() throws IOException {
+    if (inputData != null) {
+      return new ByteArrayInputStream(inputData);
+    } else if (inputFile != null) {
+      return new FileInputStream(inputFile);
+    }
+    return new FilterInputStream(System.in) {
+      @Override
+      public void close() {
+        // Leave the terminal open for the shell
+      }
+    };
+  }
+
+  /**
+   * Open the destination of this command's output, for builtins which write their
+   * output as they go rather than returning it
+   * 
+   * @throws IOException If the output file can't be opened
+   * @return The output, either a stream, a file, or the terminal, which the
+   *         caller must close
+   */
+  OutputStream openOutput() throws IOException {
+    if (outputStream != null) {
+      return outputStream;
+    } else if (outputFile == null) {
+      // Empty outputFile means output to the terminal
+      return ConsoleSink.OUT;
+    }
+    return new BufferedOutputStream(new FileOutputStream(outputFile, appendOutput));
   }
 
   /**
@@ -69,28 +192,26 @@ public class BuiltinExecutable implements Executable, Runnable {
    * @param output The output that needs to be written
    */
   private void writeOutput(Iterable<String> output) {
-    if (outputFile == null) {
-      // Empty outputFile means output to the terminal
+    try (OutputStream out = openOutput()) {
       for (String str : output) {
-        System.out.print(str);
-      }
-    } else {
-      try {
-        File file = new File(outputFile);
-        if (!file.exists()) {
-          // If the file does not exist, create it
-          file.createNewFile();
-        }
-        FileWriter writer = new FileWriter(file, appendOutput);
-        for (String str : output) {
-          writer.write(str);
-        }
-        writer.flush();
-        writer.close();
-      } catch (IOException ex) {
-        // For now, just silently fail
-        return;
+        out.write(str.getBytes());
       }
+    } catch (IOException ex) {
+      // For now, just silently fail
+      return;
+    }
+  }
+
+  @Override
+  public void processes(List<ProcessHandle> processes) {
+    // Builtins run inside the shell, but some start commands of their own
+    Executable running = child;
+    if (running != null) {
+      running.processes(processes);
+    }
+    ParallelMap items = map;
+    if (items != null) {
+      items.processes(processes);
     }
   }
 
@@ -101,6 +222,52 @@ public class BuiltinExecutable implements Executable, Runnable {
 
   @Override
   public void run() {
+    runner = Thread.currentThread();
+    long start = timer == null && tracer == null ? 0 : System.nanoTime();
+    if (tracer != null) {
+      tracer.started(this, start, 0);
+    }
+    ShellEvents.Builtin event = ShellEvents.enabled ? new ShellEvents.Builtin() : null;
+    if (event != null) {
+      event.begin();
+    }
+    try {
+      this.runCommand();
+    } finally {
+      if (event != null) {
+        event.end();
+        if (event.shouldCommit()) {
+          event.command = ShellEvents.truncate(joinCommand(words()));
+          event.exitCode = exitValue.orElse(-1);
+          event.commit();
+        }
+      }
+      if (timer != null) {
+        timer.ran(this, joinCommand(words()), start, System.nanoTime());
+      }
+      if (tracer != null) {
+        tracer.finished(this, exitValue);
+      }
+      runner = null;
+      // Don't leave the interrupt from destroy() behind for the thread's next job
+      Thread.interrupted();
+    }
+  }
+
+  /**
+   * @return The command followed by its arguments
+   */
+  private String[] words() {
+    String[] words = new String[args.length + 1];
+    words[0] = cmd;
+    System.arraycopy(args, 0, words, 1, args.length);
+    return words;
+  }
+
+  /**
+   * Run the command and write its output
+   */
+  private void runCommand() {
     Iterable<String> output;
     if (cmd.equals("cd")) {
       output = cd();
@@ -114,11 +281,44 @@ public class BuiltinExecutable implements Executable, Runnable {
       output = source();
     } else if (cmd.equals("exit")) {
       output = exit();
+    } else if (cmd.equals("set")) {
+      output = set();
+    } else if (cmd.equals("cached")) {
+      output = cached();
+    } else if (cmd.equals("watch")) {
+      output = watch();
+    } else if (cmd.equals("parallel")) {
+      output = parallel();
+    } else if (cmd.equals("complete")) {
+      output = complete();
+    } else if (cmd.equals("z")) {
+      output = z();
+    } else if (cmd.equals("export")) {
+      output = export();
+    } else if (cmd.equals("unset")) {
+      output = unset();
+    } else if (cmd.equals("timeout")) {
+      output = timeout();
+    } else if (cmd.equals("limit")) {
+      output = limit();
+    } else if (cmd.equals("jobs")) {
+      output = jobs(args.length == 1 && args[0].equals("-l"));
+    } else if (cmd.equals("ps")) {
+      output = jobs(true);
+    } else if (cmd.equals("time")) {
+      output = time();
+    } else if (cmd.equals("stats")) {
+      output = stats();
+    } else if (cmd.equals("trace")) {
+      output = trace();
     } else {
       throw new RuntimeException("This should be impossible, the command existing was already checked");
     }
 
-    writeOutput(output);
+    // Builtins which write their output as they go return null
+    if (output != null) {
+      writeOutput(output);
+    }
   }
 
   /**
@@ -174,12 +374,7 @@ public class BuiltinExecutable implements Executable, Runnable {
    */
   private Iterable<String> echo() {
     exitValue = Optional.of(0);
-    ArrayList<String> output = new ArrayList<>();
-    for (int i = 0; i < args.length; i++) {
-      output.add(args[i]);
-    }
-    output.add("\n");
-    return output;
+    return Arrays.asList(String.join(" ", args) + "\n");
   }
 
   /**
@@ -217,43 +412,42 @@ public class BuiltinExecutable implements Executable, Runnable {
     ArrayList<String> output = new ArrayList<>();
     exitValue = Optional.of(0);
     Executor executor = new Executor();
-    for (int i = 0; i < args.length; i++) {
+    nested = executor;
+    for (int i = 0; i < args.length && !destroyed; i++) {
       File file = new File(args[i]);
       if (!file.exists() || !file.canRead()) {
         output.add("ERROR: File not readable: " + args[i] + "\n");
         continue;
       }
-      Scanner scan;
+      LineReader reader;
       try {
-        scan = new Scanner(file);
+        reader = new LineReader(new FileReader(file));
       } catch (FileNotFoundException ex) {
         output.add("ERROR: File not found: " + args[i] + "\n");
         continue;
       }
-      int line = 1;
-      while (scan.hasNextLine()) {
-        String input = scan.nextLine();
-        Parser parser = new Parser(input);
-        ProcessNode root;
-        try {
-          root = parser.parse();
-        } catch (Parser.SyntaxException ex) {
-          System.out.println("Syntax error in " + args[i] + " on line " + line + ":\n");
-          System.out.println(ex.toString() + "\n");
-          continue;
-        }
-        if (root == null) {
-          continue;
-        }
-        // System.out.println(root.toString());
-        boolean shouldExit = executor.execute(root);
-        if (shouldExit) {
-          break;
+      try (ScriptReader script = new ScriptReader(reader)) {
+        ScriptReader.Line line;
+        while (!destroyed && (line = script.next()) != null) {
+          if (line.error != null) {
+            ConsoleSink.OUT.println("Syntax error in " + args[i] + " on line " + line.number + ":\n");
+            ConsoleSink.OUT.println(line.error.toString() + "\n");
+            continue;
+          }
+          // System.out.println(line.root.toString());
+          boolean shouldExit = executor.execute(line.root);
+          if (shouldExit) {
+            break;
+          }
         }
-        line += 1;
       }
-      scan.close();
+      try {
+        reader.close();
+      } catch (IOException ex) {
+        // Just ignore it
+      }
     }
+    nested = null;
     try {
       executor.close();
     } catch (IOException ex) {
@@ -272,4 +466,800 @@ public class BuiltinExecutable implements Executable, Runnable {
     executor.exit();
     return new ArrayList<>();
   }
+
+  /**
+   * Run the set command, which turns options on ("-o name") or off ("+o name"),
+   * or lists them when given no arguments
+   * 
+   * @return The output of the command
+   */
+  private Iterable<String> set() {
+    ArrayList<String> output = new ArrayList<>();
+    exitValue = Optional.of(0);
+    if (args.length == 0) {
+      for (String option : Executor.ALL_OPTIONS) {
+        output.add((executor.option(option) ? "-o " : "+o ") + option + "\n");
+      }
+      return output;
+    }
+    if (args.length % 2 != 0) {
+      exitValue = Optional.of(1);
+      output.add("ERROR: Usage: set [-o|+o option]...\n");
+      return output;
+    }
+    for (int i = 0; i < args.length; i += 2) {
+      if (!args[i].equals("-o") && !args[i].equals("+o")) {
+        exitValue = Optional.of(1);
+        output.add("ERROR: Usage: set [-o|+o option]...\n");
+      } else if (!Executor.ALL_OPTIONS.contains(args[i + 1])) {
+        exitValue = Optional.of(1);
+        output.add("ERROR: Unknown option: " + args[i + 1] + "\n");
+      } else {
+        executor.setOption(args[i + 1], args[i].equals("-o"));
+      }
+    }
+    return output;
+  }
+
+  /**
+   * Run the cached command, which runs a deterministic command, or replays its
+   * output and exit code if it has already been run with the same inputs.
+   * Usage: cached [-i file]... command [args]...
+   * 
+   * @return The output of the command if there was an error, or null if the
+   *         output was written as it went
+   */
+  private Iterable<String> cached() {
+    exitValue = Optional.of(1);
+    ArrayList<String> inputs = new ArrayList<>(); // Files the command is declared to read
+    int first = 0; // The index of the command
+    while (first + 1 < args.length && args[first].equals("-i")) {
+      inputs.add(args[first + 1]);
+      first += 2;
+    }
+    if (first >= args.length) {
+      return Arrays.asList("ERROR: Usage: cached [-i file]... command [args]...\n");
+    }
+    String[] argv = Arrays.copyOfRange(args, first, args.length);
+    Executable command;
+    String key;
+    try {
+      command = executor.resolveCommand(argv[0], Arrays.copyOfRange(argv, 1, argv.length));
+      if (!(command instanceof FileExecutable)) {
+        return Arrays.asList("ERROR: 'cached' only works with external commands.\n");
+      }
+      key = OutputCache.key(argv, executor.pwd(), ((FileExecutable) command).path(), executor.environment(),
+          inputFile, inputData, inputs);
+    } catch (Executor.ExecutionException | IOException ex) {
+      return Arrays.asList("ERROR: " + ex.getMessage() + "\n");
+    }
+    try (OutputStream out = openOutput()) {
+      Integer cachedExit = OutputCache.replay(key, out);
+      if (cachedExit != null) {
+        exitValue = Optional.of(cachedExit);
+        return null;
+      }
+      if (inputData != null) {
+        command.redirectInput(inputData);
+      } else if (inputFile != null) {
+        command.redirectInput(inputFile);
+      }
+      OutputBuffer buffer = new OutputBuffer(Executor.CAPTURE_MEMORY_LIMIT);
+      try {
+        command.redirectOutput(buffer);
+        child = command;
+        command.start();
+        command.waitFor();
+        int exit = command.exitValue().orElse(1);
+        OutputCache.store(key, exit, buffer);
+        buffer.writeTo(out);
+        exitValue = Optional.of(exit);
+      } finally {
+        buffer.discard();
+      }
+    } catch (Executor.ExecutionException | IOException | InterruptedException ex) {
+      exitValue = Optional.of(1);
+      ConsoleSink.OUT.println("ERROR: " + ex.getMessage());
+    }
+    return null;
+  }
+
+  /**
+   * Run the parallel command, which runs a command once for every item, with a
+   * limit on how many run at once. Items are given after ":::", or read from the
+   * input one per line. Usage: parallel [-j jobs] [-k] command [args]... [:::
+   * item...]
+   * 
+   * @return The output of the command
+   */
+  private Iterable<String> parallel() {
+    exitValue = Optional.of(1);
+    int jobs = Runtime.getRuntime().availableProcessors(); // The most items to run at once
+    boolean keepOrder = false; // True to output the items in order
+    int first = 0; // The index of the command
+    while (first < args.length && args[first].startsWith("-")) {
+      if (args[first].equals("-k") || args[first].equals("--keep-order")) {
+        keepOrder = true;
+        first++;
+      } else if (args[first].equals("-j") && first + 1 < args.length) {
+        try {
+          jobs = Integer.parseInt(args[first + 1]);
+        } catch (NumberFormatException ex) {
+          jobs = 0;
+        }
+        if (jobs < 1) {
+          return Arrays.asList("ERROR: Not a number of jobs: " + args[first + 1] + "\n");
+        }
+        first += 2;
+      } else {
+        return Arrays.asList("ERROR: Unknown option: " + args[first] + "\n");
+      }
+    }
+    int separator = Arrays.asList(args).indexOf(":::");
+    int end = separator < 0 ? args.length : separator; // One past the last word of the command
+    if (first >= end) {
+      return Arrays.asList("ERROR: Usage: parallel [-j jobs] [-k] command [args]... [::: item...]\n");
+    }
+    List<String> items;
+    if (separator >= 0) {
+      items = Arrays.asList(args).subList(separator + 1, args.length);
+    } else {
+      if (inputData == null && inputFile == null && executor.commandsOnStdin()) {
+        // The shell has already read ahead into its standard input, so the items
+        // can't be told apart from the commands
+        return Arrays.asList("ERROR: Standard input holds the shell's commands, give the items after ::: or with <\n");
+      }
+      items = new ArrayList<>();
+      try (BufferedReader reader = new BufferedReader(new InputStreamReader(openInput()))) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          if (!line.isEmpty()) {
+            items.add(line);
+          }
+        }
+      } catch (IOException ex) {
+        return Arrays.asList("ERROR: " + ex.getMessage() + "\n");
+      }
+    }
+    map = new ParallelMap(executor, Arrays.copyOfRange(args, first, end), items, jobs, keepOrder);
+    int[] exits;
+    try {
+      exits = map.run(openOutput());
+    } catch (IOException ex) {
+      return Arrays.asList("ERROR: " + ex.getMessage() + "\n");
+    } catch (InterruptedException ex) {
+      exitValue = Optional.of(130);
+      return null;
+    }
+    int failures = 0;
+    for (int i = 0; i < exits.length; i++) {
+      if (exits[i] != 0) {
+        ConsoleSink.OUT.println("ERROR: parallel: " + items.get(i) + ": exit " + exits[i]);
+        failures++;
+      }
+    }
+    // Like GNU parallel, the exit value is the number of failed items, up to 101
+    exitValue = Optional.of(Math.min(failures, 101));
+    return null;
+  }
+
+  /**
+   * Run the complete command, which lists the commands or paths starting with a
+   * prefix, one per line. Usage: complete [-f] prefix
+   * 
+   * @return The output of the command
+   */
+  private Iterable<String> complete() {
+    boolean paths = args.length > 0 && args[0].equals("-f"); // True to complete paths rather than commands
+    int first = paths ? 1 : 0; // The index of the prefix
+    if (args.length - first > 1 || (!paths && args.length == 0)) {
+      exitValue = Optional.of(1);
+      return Arrays.asList("ERROR: Usage: complete [-f] prefix\n");
+    }
+    String prefix = args.length > first ? args[first] : "";
+    Completer completer = executor.completer();
+    List<String> matches = paths ? completer.completePath(prefix, executor.pwd())
+        : completer.completeCommand(prefix, executor.path(), executor.pwd());
+    ArrayList<String> output = new ArrayList<>(matches.size());
+    for (String match : matches) {
+      output.add(match + "\n");
+    }
+    exitValue = Optional.of(matches.isEmpty() ? 1 : 0);
+    return output;
+  }
+
+  /**
+   * Run the z command, which changes the cwd to the most frequently and recently
+   * visited directory matching every fragment, or lists the matches with -l.
+   * Usage: z [-l] fragment...
+   * 
+   * @return The output of the command
+   */
+  private Iterable<String> z() {
+    boolean list = args.length > 0 && args[0].equals("-l"); // True to list the matches instead of jumping
+    String[] fragments = Arrays.copyOfRange(args, list ? 1 : 0, args.length);
+    if (!list && fragments.length == 0) {
+      exitValue = Optional.of(1);
+      return Arrays.asList("ERROR: Usage: z [-l] fragment...\n");
+    }
+    List<Frecency.Entry> matches = executor.frecency().find(fragments);
+    if (matches.isEmpty()) {
+      exitValue = Optional.of(1);
+      return Arrays.asList("ERROR: No visited directory matches.\n");
+    }
+    exitValue = Optional.of(0);
+    if (!list) {
+      executor.cd(matches.get(0).path);
+      return Arrays.asList();
+    }
+    ArrayList<String> output = new ArrayList<>(matches.size());
+    for (Frecency.Entry match : matches) {
+      output.add(String.format("%-10.1f %s\n", match.score, match.path));
+    }
+    return output;
+  }
+
+  /**
+   * Run the export command, which sets environment variables for the commands
+   * run after it, or lists every variable if given no arguments. Usage: export
+   * [name=value]...
+   * 
+   * @return The output of the command
+   */
+  private Iterable<String> export() {
+    ArrayList<String> output = new ArrayList<>();
+    exitValue = Optional.of(0);
+    if (args.length == 0) {
+      for (Map.Entry<String, String> variable : executor.environment().toMap().entrySet()) {
+        output.add("export " + variable.getKey() + "=" + quote(variable.getValue()) + "\n");
+      }
+      return output;
+    }
+    for (String arg : args) {
+      int equals = arg.indexOf('=');
+      String name = equals < 0 ? arg : arg.substring(0, equals);
+      if (!name.matches("[A-Za-z_][A-Za-z0-9_]*")) {
+        exitValue = Optional.of(1);
+        output.add("ERROR: Not a valid variable name: " + name + "\n");
+      } else if (equals < 0) {
+        exitValue = Optional.of(1);
+        output.add("ERROR: Missing value, use " + name + "=value\n");
+      } else {
+        executor.export(name, arg.substring(equals + 1));
+      }
+    }
+    return output;
+  }
+
+  /**
+   * Run the unset command, which removes environment variables for the commands
+   * run after it. Usage: unset name...
+   * 
+   * @return The output of the command
+   */
+  private Iterable<String> unset() {
+    for (String name : args) {
+      executor.unset(name);
+    }
+    exitValue = Optional.of(0);
+    return Arrays.asList();
+  }
+
+  /**
+   * Run the timeout command, which runs a command and kills it, along with every
+   * process it started, if it runs for too long. Usage: timeout duration command
+   * [args]...
+   * 
+   * @return The output of the command
+   */
+  private Iterable<String> timeout() {
+    exitValue = Optional.of(1);
+    if (args.length < 2) {
+      return Arrays.asList("ERROR: Usage: timeout duration command [args]...\n");
+    }
+    long millis = Watchdog.parseDuration(args[0]);
+    if (millis < 0) {
+      return Arrays.asList("ERROR: Not a duration: " + args[0] + "\n");
+    }
+    Executable command;
+    try {
+      command = executor.resolveCommand(args[1], Arrays.copyOfRange(args, 2, args.length));
+    } catch (Executor.ExecutionException ex) {
+      exitValue = Optional.of(127);
+      return Arrays.asList("ERROR: " + ex.getMessage() + "\n");
+    }
+    if (inputData != null) {
+      command.redirectInput(inputData);
+    } else if (inputFile != null) {
+      command.redirectInput(inputFile);
+    }
+    if (outputStream != null) {
+      command.redirectOutput(outputStream);
+    } else if (outputFile != null) {
+      command.redirectOutput(outputFile, appendOutput);
+    }
+    child = command;
+    try {
+      command.start();
+    } catch (Executor.ExecutionException ex) {
+      exitValue = Optional.of(126);
+      return Arrays.asList("ERROR: " + ex.getMessage() + "\n");
+    }
+    Watchdog.Watch watch = Watchdog.watch(command, millis);
+    try {
+      command.waitFor();
+    } catch (InterruptedException ex) {
+      // This was destroyed, so take the command down with it
+      command.destroy();
+    }
+    if (watch.cancel()) {
+      exitValue = Optional.of(Executor.TIMED_OUT);
+    } else {
+      exitValue = Optional.of(command.exitValue().orElse(1));
+    }
+    return null;
+  }
+
+  /**
+   * Run the time command, which runs a command and reports how long it took, how
+   * much CPU its processes used, and how much of the time the shell spent on it:
+   * parsing it, resolving each member, and starting each process. A single
+   * argument is parsed as a whole command line, so pipelines and groups can be
+   * timed by quoting them. Usage: time command [args]...
+   * 
+   * @return The output of the command
+   */
+  private Iterable<String> time() {
+    exitValue = Optional.of(1);
+    if (args.length == 0) {
+      return Arrays.asList("ERROR: Usage: time command [args]...\n");
+    }
+    long wallStart = System.nanoTime();
+    CommandTimer timing = new CommandTimer();
+    CommandTimer outer = executor.timer();
+    executor.setTimer(timing);
+    Executable command;
+    long parsed = parseNanos; // The line was parsed before this started, so that counts too
+    try {
+      ProcessNode node;
+      if (args.length == 1) {
+        // A single argument is a command line of its own, to be parsed
+        try {
+          node = new Parser(args[0]).parse();
+        } catch (Parser.SyntaxException ex) {
+          return Arrays.asList(ex.toString() + "\n");
+        }
+        if (node == null) {
+          return Arrays.asList("ERROR: Usage: time command [args]...\n");
+        }
+        parsed += node.parseNanos();
+      } else {
+        // The arguments have already been parsed and expanded, so they are run as
+        // they are
+        node = new ShellProcess(args);
+      }
+      timing.parsed(parsed);
+      command = node.execute(executor);
+      if (command == null) {
+        exitValue = Optional.of(127);
+        return null;
+      }
+      if (inputData != null) {
+        command.redirectInput(inputData);
+      } else if (inputFile != null) {
+        command.redirectInput(inputFile);
+      }
+      if (outputStream != null) {
+        command.redirectOutput(outputStream);
+      } else if (outputFile != null) {
+        command.redirectOutput(outputFile, appendOutput);
+      }
+      child = command;
+      try {
+        command.start();
+      } catch (Executor.ExecutionException ex) {
+        exitValue = Optional.of(126);
+        return Arrays.asList("ERROR: " + ex.getMessage() + "\n");
+      }
+      try {
+        command.waitFor();
+      } catch (InterruptedException ex) {
+        // This was destroyed, so take the command down with it
+        command.destroy();
+      }
+    } finally {
+      timing.stop();
+      executor.setTimer(outer);
+    }
+    long wall = System.nanoTime() - wallStart + parseNanos;
+    exitValue = Optional.of(command.exitValue().orElse(1));
+    // The report goes to the terminal even when the command's output is
+    // redirected, like the time of other shells goes to standard error
+    for (String line : timing.report(wall)) {
+      ConsoleSink.OUT.print(line);
+    }
+    return null;
+  }
+
+  /**
+   * Run the stats command, which lists what the shell has counted and timed since
+   * it started. Usage: stats [-p] to list them, in the Prometheus text format
+   * with -p, or stats dump file [interval] to write them to a file in that format
+   * every interval (10 seconds by default), or stats dump off to stop
+   * 
+   * @return The output of the command
+   */
+  private Iterable<String> stats() {
+    exitValue = Optional.of(0);
+    if (args.length == 0) {
+      return Metrics.summary();
+    } else if (args.length == 1 && args[0].equals("-p")) {
+      return Metrics.prometheus();
+    } else if (args.length == 2 && args[0].equals("dump") && args[1].equals("off")) {
+      if (!Metrics.stopDump()) {
+        exitValue = Optional.of(1);
+        return Arrays.asList("ERROR: Not dumping stats\n");
+      }
+      return Arrays.asList();
+    } else if ((args.length == 2 || args.length == 3) && args[0].equals("dump")) {
+      long millis = args.length == 3 ? Watchdog.parseDuration(args[2]) : 10000;
+      if (millis < 0) {
+        exitValue = Optional.of(1);
+        return Arrays.asList("ERROR: Not a duration: " + args[2] + "\n");
+      }
+      Metrics.dumpEvery(Paths.get(executor.pwd()).resolve(args[1]).toFile(), millis);
+      return Arrays.asList();
+    }
+    exitValue = Optional.of(1);
+    return Arrays.asList("ERROR: Usage: stats [-p] | stats dump file [interval] | stats dump off\n");
+  }
+
+  /**
+   * Run the trace command, which records when every command starts and finishes
+   * to a file in the Chrome trace-event format, for loading into a trace viewer.
+   * Usage: trace on file to start, trace off to stop and finish the file, or
+   * trace with no arguments to say whether a trace is being recorded
+   * 
+   * @return The output of the command
+   */
+  private Iterable<String> trace() {
+    exitValue = Optional.of(0);
+    if (args.length == 0) {
+      return Arrays.asList(Tracer.current() == null ? "off\n" : "on\n");
+    } else if (args.length == 2 && args[0].equals("on")) {
+      try {
+        Tracer.start(Paths.get(executor.pwd()).resolve(args[1]).toFile());
+      } catch (IOException ex) {
+        exitValue = Optional.of(1);
+        return Arrays.asList("ERROR: " + ex.getMessage() + "\n");
+      } catch (InterruptedException ex) {
+        exitValue = Optional.of(130);
+        return Arrays.asList("ERROR: Interrupted, the last trace is still being written\n");
+      }
+      return Arrays.asList();
+    } else if (args.length == 1 && args[0].equals("off")) {
+      File file;
+      try {
+        file = Tracer.stop();
+      } catch (IOException ex) {
+        exitValue = Optional.of(1);
+        return Arrays.asList("ERROR: " + ex.getMessage() + "\n");
+      } catch (InterruptedException ex) {
+        exitValue = Optional.of(130);
+        return Arrays.asList("ERROR: Interrupted, the trace is still being written\n");
+      }
+      if (file == null) {
+        exitValue = Optional.of(1);
+        return Arrays.asList("ERROR: Not tracing\n");
+      }
+      return Arrays.asList("Trace written to " + file.getPath() + "\n");
+    }
+    exitValue = Optional.of(1);
+    return Arrays.asList("ERROR: Usage: trace on file | trace off\n");
+  }
+
+  /**
+   * Run the limit command, which sets the limits on every command run after it,
+   * or lists them if given no arguments. A command going over a limit is killed.
+   * Usage: limit [time duration|none] [output bytes|none]
+   * 
+   * @return The output of the command
+   */
+  private Iterable<String> limit() {
+    exitValue = Optional.of(0);
+    if (args.length == 0) {
+      long time = executor.timeLimit();
+      long output = executor.outputLimit();
+      return Arrays.asList("time " + (time == 0 ? "none" : time + "ms") + "\n",
+          "output " + (output == 0 ? "none" : output + " bytes") + "\n");
+    }
+    if (args.length % 2 != 0) {
+      exitValue = Optional.of(1);
+      return Arrays.asList("ERROR: Usage: limit [time duration|none] [output bytes|none]\n");
+    }
+    for (int i = 0; i < args.length; i += 2) {
+      boolean none = args[i + 1].equals("none");
+      if (args[i].equals("time")) {
+        long millis = none ? 0 : Watchdog.parseDuration(args[i + 1]);
+        if (millis < 0) {
+          exitValue = Optional.of(1);
+          return Arrays.asList("ERROR: Not a duration: " + args[i + 1] + "\n");
+        }
+        executor.setTimeLimit(millis);
+      } else if (args[i].equals("output")) {
+        long bytes = none ? 0 : parseSize(args[i + 1]);
+        if (!none && bytes <= 0) {
+          exitValue = Optional.of(1);
+          return Arrays.asList("ERROR: Not a size: " + args[i + 1] + "\n");
+        }
+        executor.setOutputLimit(bytes);
+      } else {
+        exitValue = Optional.of(1);
+        return Arrays.asList("ERROR: Unknown limit: " + args[i] + "\n");
+      }
+    }
+    return Arrays.asList();
+  }
+
+  /**
+   * Run the jobs command, which lists the jobs started in the background with how
+   * long they have run, how much CPU they are using, and whether they are done.
+   * The CPU use comes from the job monitor's last sample, so listing the jobs
+   * doesn't have to look at any processes. Jobs which are done are listed once
+   * and then forgotten. Usage: jobs [-l], where -l lists every process in each
+   * job as well. ps is the same as jobs -l
+   * 
+   * @param processes True to list every process in each job
+   * @return The output of the command
+   */
+  private Iterable<String> jobs(boolean processes) {
+    ArrayList<String> output = new ArrayList<>();
+    if (cmd.equals("jobs") && args.length > 0 && !(args.length == 1 && args[0].equals("-l"))) {
+      exitValue = Optional.of(1);
+      output.add("ERROR: Usage: jobs [-l]\n");
+      return output;
+    }
+    exitValue = Optional.of(0);
+    for (JobMonitor.Job job : executor.jobs().jobs()) {
+      Optional<Integer> exit = job.exitValue();
+      String state = exit.isPresent() ? "Done(" + exit.get() + ")" : "Running";
+      output.add(String.format("[%d] %-9s %6.1f%% %9s %s%n", job.id(), state, job.cpuPercent(),
+          formatDuration(job.runtime()), job.description()));
+      if (processes && exit.isEmpty()) {
+        for (JobMonitor.ProcessSample process : job.processes()) {
+          output.add(String.format("    %7d %6.1f%% %9s %s%n", process.pid, process.cpuPercent,
+              formatDuration(Duration.ofNanos(process.cpuNanos)), process.command));
+        }
+      }
+    }
+    return output;
+  }
+
+  /**
+   * Format a duration as hours, minutes, and seconds
+   * 
+   * @param duration The duration
+   * @return The duration as h:mm:ss, or m:ss.s if it is under an hour
+   */
+  private static String formatDuration(Duration duration) {
+    long millis = duration.toMillis();
+    if (millis >= 60 * 60 * 1000) {
+      return String.format("%d:%02d:%02d", millis / 3600000, millis / 60000 % 60, millis / 1000 % 60);
+    }
+    return String.format("%d:%04.1f", millis / 60000, millis % 60000 / 1000.0);
+  }
+
+  /**
+   * Parse a size, which is a number of bytes optionally followed by "k", "m", or
+   * "g"
+   * 
+   * @param size The size
+   * @return The size in bytes, or -1 if it isn't a valid size
+   */
+  private static long parseSize(String size) {
+    int shift = 0;
+    String lower = size.toLowerCase();
+    if (lower.endsWith("k")) {
+      shift = 10;
+    } else if (lower.endsWith("m")) {
+      shift = 20;
+    } else if (lower.endsWith("g")) {
+      shift = 30;
+    }
+    try {
+      return Long.parseLong(shift == 0 ? size : size.substring(0, size.length() - 1)) << shift;
+    } catch (NumberFormatException ex) {
+      return -1;
+    }
+  }
+
+  /**
+   * Run the watch command, which runs a command, then runs it again whenever any
+   * of the watched paths change, cancelling the previous run if it is still
+   * going. Bursts of changes are only acted on once they have settled down.
+   * Runs until interrupted. Usage: watch [-d ms] path... -- command
+   * 
+   * @return The output of the command
+   */
+  private Iterable<String> watch() {
+    exitValue = Optional.of(1);
+    long debounce = 200; // How long changes must settle for before running the command, in milliseconds
+    int first = 0; // The index of the first path
+    if (args.length > 1 && args[0].equals("-d")) {
+      try {
+        debounce = Long.parseLong(args[1]);
+      } catch (NumberFormatException ex) {
+        return Arrays.asList("ERROR: Not a number of milliseconds: " + args[1] + "\n");
+      }
+      first = 2;
+    }
+    int separator = Arrays.asList(args).indexOf("--");
+    if (separator <= first || separator == args.length - 1) {
+      return Arrays.asList("ERROR: Usage: watch [-d ms] path... -- command\n");
+    }
+    ProcessNode command;
+    try {
+      command = new Parser(joinCommand(Arrays.copyOfRange(args, separator + 1, args.length))).parse();
+    } catch (Parser.SyntaxException ex) {
+      return Arrays.asList(ex.toString() + "\n");
+    }
+    Executable running = null; // The current run of the command
+    try (WatchService service = FileSystems.getDefault().newWatchService()) {
+      HashSet<Path> files = new HashSet<>(); // Files being watched
+      HashSet<Path> directories = new HashSet<>(); // Directories being watched, along with everything in them
+      for (int i = first; i < separator; i++) {
+        Path path = Paths.get(executor.pwd()).resolve(args[i]).normalize();
+        if (Files.isDirectory(path)) {
+          directories.add(path);
+          registerTree(service, path);
+        } else if (path.getParent() != null && Files.isDirectory(path.getParent())) {
+          files.add(path);
+          path.getParent().register(service, StandardWatchEventKinds.ENTRY_CREATE,
+              StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } else {
+          return Arrays.asList("ERROR: Does not exist: " + args[i] + "\n");
+        }
+      }
+      running = runWatched(command, null);
+      while (true) {
+        boolean relevant = changed(service, service.take(), files, directories);
+        // Wait for the changes to settle down before running again
+        WatchKey key;
+        while ((key = service.poll(debounce, TimeUnit.MILLISECONDS)) != null) {
+          relevant = changed(service, key, files, directories) || relevant;
+        }
+        if (relevant) {
+          running = runWatched(command, running);
+        }
+      }
+    } catch (InterruptedException ex) {
+      // Interrupted, which is how watch is stopped
+      if (running != null) {
+        running.destroy();
+      }
+      exitValue = Optional.of(0);
+      return Arrays.asList();
+    } catch (IOException ex) {
+      if (running != null) {
+        running.destroy();
+      }
+      return Arrays.asList("ERROR: " + ex.getMessage() + "\n");
+    }
+  }
+
+  /**
+   * Watch a directory and every directory below it
+   * 
+   * @param service The watch service to register with
+   * @param root    The directory to watch
+   * @throws IOException If a directory can't be watched
+   */
+  private static void registerTree(WatchService service, Path root) throws IOException {
+    Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+        dir.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+            StandardWatchEventKinds.ENTRY_MODIFY);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  /**
+   * Go through the events of a watch key, checking if any of them are for
+   * watched paths. New directories inside watched directories are watched too
+   * 
+   * @param service     The watch service
+   * @param key         The signalled key
+   * @param files       Files being watched
+   * @param directories Directories being watched, along with everything in them
+   * @throws IOException If a new directory can't be watched
+   * @return True if any of the events were for a watched path
+   */
+  private static boolean changed(WatchService service, WatchKey key, HashSet<Path> files, HashSet<Path> directories)
+      throws IOException {
+    boolean relevant = false;
+    Path dir = (Path) key.watchable();
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+        // Events were lost, so assume the worst
+        relevant = true;
+        continue;
+      }
+      Path path = dir.resolve((Path) event.context());
+      boolean inDirectory = false;
+      for (Path directory : directories) {
+        if (path.startsWith(directory)) {
+          inDirectory = true;
+          break;
+        }
+      }
+      if (inDirectory && event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+        registerTree(service, path);
+      }
+      relevant = relevant || inDirectory || files.contains(path);
+    }
+    key.reset();
+    return relevant;
+  }
+
+  /**
+   * Start a run of a watched command, first cancelling the previous run if it is
+   * still going
+   * 
+   * @param command  The command to run
+   * @param previous The previous run, or null if there wasn't one
+   * @throws InterruptedException If interrupted while waiting for the previous
+   *                              run to stop
+   * @return The new run, or null if it couldn't be started
+   */
+  private Executable runWatched(ProcessNode command, Executable previous) throws InterruptedException {
+    if (previous != null) {
+      previous.destroy();
+      previous.waitFor();
+    }
+    Executable executable = command.execute(executor);
+    if (executable == null) {
+      return null;
+    }
+    child = executable;
+    try {
+      executable.start();
+    } catch (Executor.ExecutionException ex) {
+      ConsoleSink.OUT.println("ERROR: " + ex.getMessage());
+      return null;
+    }
+    return executable;
+  }
+
+  /**
+   * Join arguments back into a command line that parses into the same
+   * arguments, quoting any that need it
+   * 
+   * @param words The arguments
+   * @return The command line
+   */
+  static String joinCommand(String[] words) {
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < words.length; i++) {
+      if (i > 0) {
+        builder.append(' ');
+      }
+      builder.append(quote(words[i]));
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Quote a word if it needs it to be parsed back into the same word
+   * 
+   * @param word The word
+   * @return The word, quoted if it is empty or has special characters in it
+   */
+  static String quote(String word) {
+    if (word.isEmpty() || word.matches(".*[\\s()&|<>$\"'*?\\[].*")) {
+      return '"' + word.replace("\"", "\\\"") + '"';
+    }
+    return word;
+  }
 }
@@ -0,0 +1,158 @@
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+
+/**
+ * A journal of the lines of a script that have completed successfully, so a
+ * script that died partway through can be resumed without redoing the lines
+ * that already ran. The journal is a small append-only file of line numbers,
+ * named after the script's path and a hash of its contents, so editing the
+ * script starts a fresh journal.
+ */
+public class Checkpoint implements Closeable {
+  private File journal; // The journal file
+  private DataOutputStream writer; // Appends to the journal
+  private BitSet completed = new BitSet(); // The lines completed in earlier runs
+
+  /**
+   * Open the journal for a script
+   * 
+   * @param script The path of the script
+   * @param resume True to skip the lines recorded in an existing journal, false
+   *               to start a new one
+   * @throws IOException If the script can't be read or the journal can't be
+   *                     opened
+   */
+  public Checkpoint(String script, boolean resume) throws IOException {
+    File dir = new File(System.getProperty("user.home"), ".jshcheckpoints");
+    dir.mkdirs();
+    File file = new File(script);
+    journal = new File(dir, hex(hash(file.getCanonicalPath() + "\n" + hex(hashContents(file)))) + ".journal");
+    if (resume && journal.exists()) {
+      try (DataInputStream reader = new DataInputStream(new BufferedInputStream(new FileInputStream(journal)))) {
+        while (true) {
+          completed.set(reader.readInt());
+        }
+      } catch (EOFException ex) {
+        // That's all of them
+      }
+    }
+    writer = new DataOutputStream(new FileOutputStream(journal, resume));
+  }
+
+  /**
+   * Check if a line completed successfully in an earlier run
+   * 
+   * @param line The line number
+   * @return True if the line should be skipped
+   */
+  public boolean completed(int line) {
+    return completed.get(line);
+  }
+
+  /**
+   * Record that a line completed successfully. It is written straight to the
+   * journal, so it survives the shell dying
+   * 
+   * @param line The line number
+   */
+  public void record(int line) {
+    try {
+      writer.writeInt(line);
+      writer.flush();
+    } catch (IOException ex) {
+      // The line will just be run again on resume
+    }
+  }
+
+  /**
+   * Delete the journal, for when the whole script has completed successfully and
+   * there is nothing left to resume
+   */
+  public void finish() {
+    try {
+      writer.close();
+    } catch (IOException ex) {
+      // We're deleting it anyway
+    }
+    journal.delete();
+  }
+
+  @Override
+  public void close() throws IOException {
+    writer.close();
+  }
+
+  /**
+   * Hash the contents of a file
+   * 
+   * @param file The file to hash
+   * @throws IOException If the file can't be read
+   * @return The SHA-256 hash of the file
+   */
+  static byte[] hashContents(File file) throws IOException {
+    MessageDigest digest = digest();
+    try (InputStream in = new DigestInputStream(new FileInputStream(file), digest)) {
+      in.transferTo(OutputStream.nullOutputStream());
+    }
+    return digest.digest();
+  }
+
+  /**
+   * Hash a string
+   * 
+   * @param str The string to hash
+   * @return The SHA-256 hash of the string
+   */
+  static byte[] hash(String str) {
+    return hash(str.getBytes());
+  }
+
+  /**
+   * Hash some bytes
+   * 
+   * @param data The bytes to hash
+   * @return The SHA-256 hash of the bytes
+   */
+  static byte[] hash(byte[] data) {
+    return digest().digest(data);
+  }
+
+  /**
+   * @return A new SHA-256 digest
+   */
+  private static MessageDigest digest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException ex) {
+      throw new RuntimeException("This should be impossible, every JVM supports SHA-256");
+    }
+  }
+
+  /**
+   * Convert bytes to a hexadecimal string
+   * 
+   * @param bytes The bytes to convert
+   * @return The hexadecimal string
+   */
+  static String hex(byte[] bytes) {
+    StringBuilder builder = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      builder.append(Character.forDigit((b >> 4) & 0xF, 16));
+      builder.append(Character.forDigit(b & 0xF, 16));
+    }
+    return builder.toString();
+  }
+}
@@ -0,0 +1,338 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Runs an external command whose arguments are too long to pass to a single
+ * process, by splitting them across several invocations the way xargs does.
+ * Leading options are repeated for each invocation and the rest of the
+ * arguments are shared out between them. The invocations run one after another,
+ * or several at a time up to a limit.
+ */
+public class ChunkedExecutable implements Executable {
+  /**
+   * Space left free below the argument limit, for anything the estimate misses
+   */
+  static final int ARG_MAX_HEADROOM = 4096;
+
+  /**
+   * The argument limit to assume if it can't be looked up
+   */
+  static final int DEFAULT_ARG_MAX = 128 << 10;
+
+  /**
+   * The size of a pointer in the argument and environment arrays
+   */
+  private static final int POINTER_SIZE = 8;
+
+  private static long argMax; // The system's limit on argument and environment size, 0 until looked up
+
+  private FileExecutable[] chunks; // The invocations the arguments were split into
+  private int limit; // The most invocations to run at once
+  private String outputFile; // A file to direct output to
+  private boolean appendOutput; // True to append output to an existing file, false to overwrite
+  private OutputStream outputStream; // A stream to direct output to
+  private Thread runner; // The thread starting and waiting for the invocations
+  private volatile Optional<Integer> exitValue = Optional.empty(); // The combined exit value
+  private volatile boolean destroyed; // True once destroy() has been called, so no more invocations are started
+  private Tracer tracer; // Records when the invocations started and finished, null unless tracing
+
+  /**
+   * Create a chunked executable
+   *
+   * @param file     The path to the file to execute
+   * @param args     The arguments, which don't fit in one invocation
+   * @param executor The executor running this command
+   * @param limit    The most invocations to run at once
+   */
+  public ChunkedExecutable(String file, String[] args, Executor executor, int limit) {
+    this.limit = limit;
+    int fixed = 0; // How many leading arguments are repeated for every invocation
+    while (fixed < args.length && args[fixed].startsWith("-")) {
+      fixed++;
+      if (args[fixed - 1].equals("--")) {
+        break;
+      }
+    }
+    long budget = budget(file, args, fixed, executor.environment());
+    if (fixed == args.length || budget <= 0) {
+      // Either every argument looks like an option, or the options alone use up
+      // the limit, so share out all of the arguments instead
+      fixed = 0;
+      budget = budget(file, args, fixed, executor.environment());
+    }
+    ArrayList<FileExecutable> split = new ArrayList<>();
+    if (budget <= 0) {
+      // The environment alone uses up the limit, so no split would start either.
+      // Run it once, to fail the way it would have without splitting
+      split.add(new FileExecutable(file, args, executor));
+    }
+    int start = fixed;
+    while (budget > 0 && start < args.length) {
+      // Always take at least one argument, an argument too long on its own fails
+      // however it is passed
+      int end = start + 1;
+      long used = argSize(args[start]);
+      while (end < args.length && used + argSize(args[end]) <= budget) {
+        used += argSize(args[end]);
+        end++;
+      }
+      String[] chunk = new String[fixed + end - start];
+      System.arraycopy(args, 0, chunk, 0, fixed);
+      System.arraycopy(args, start, chunk, fixed, end - start);
+      split.add(new FileExecutable(file, chunk, executor));
+      start = end;
+    }
+    chunks = split.toArray(new FileExecutable[0]);
+    tracer = Tracer.current();
+    if (tracer != null) {
+      tracer.add(this, "Chunked " + chunks.length, true, limit > 1);
+      tracer.adopt(this, chunks);
+    }
+  }
+
+  /**
+   * Check if arguments are too long to pass to a single invocation
+   *
+   * @param file        The path to the file to execute
+   * @param args        The arguments
+   * @param environment The environment the invocation gets
+   * @return True if the arguments need to be split up
+   */
+  public static boolean tooLong(String file, String[] args, Environment environment) {
+    long used = argSize(file);
+    for (int i = 0; i < args.length; i++) {
+      used += argSize(args[i]);
+    }
+    return used > argMax() - environmentSize(environment) - ARG_MAX_HEADROOM;
+  }
+
+  /**
+   * Work out how much of the argument limit is left for the arguments which are
+   * split up
+   *
+   * @param file        The path to the file to execute
+   * @param args        The arguments
+   * @param fixed       How many leading arguments are repeated for every
+   *                    invocation
+   * @param environment The environment the invocations get
+   * @return The space left, in bytes
+   */
+  private static long budget(String file, String[] args, int fixed, Environment environment) {
+    long used = argSize(file);
+    for (int i = 0; i < fixed; i++) {
+      used += argSize(args[i]);
+    }
+    return argMax() - environmentSize(environment) - ARG_MAX_HEADROOM - used;
+  }
+
+  /**
+   * @param arg An argument
+   * @return The space the argument takes up when passed to a process
+   */
+  private static long argSize(String arg) {
+    return arg.getBytes(StandardCharsets.UTF_8).length + 1 + POINTER_SIZE;
+  }
+
+  /**
+   * @param environment An environment
+   * @return The space the environment takes up when passed to a process
+   */
+  private static long environmentSize(Environment environment) {
+    long size = POINTER_SIZE;
+    for (Map.Entry<String, String> entry : environment.toMap().entrySet()) {
+      size += entry.getKey().length() + entry.getValue().length() + 2 + POINTER_SIZE;
+    }
+    return size;
+  }
+
+  /**
+   * Look up the system's limit on the size of the arguments and environment of a
+   * process, the first time it's needed
+   *
+   * @return The limit, in bytes
+   */
+  private static synchronized long argMax() {
+    if (argMax == 0) {
+      argMax = DEFAULT_ARG_MAX;
+      try {
+        Process getconf = new ProcessBuilder("getconf", "ARG_MAX").redirectErrorStream(true).start();
+        try (InputStream in = getconf.getInputStream()) {
+          argMax = Long.parseLong(new String(in.readAllBytes()).trim());
+        }
+        getconf.waitFor();
+      } catch (IOException | NumberFormatException | InterruptedException ex) {
+        // Stick with the default
+      }
+    }
+    return argMax;
+  }
+
+  @Override
+  public void start() throws Executor.ExecutionException {
+    if (tracer != null) {
+      tracer.started(this, System.nanoTime(), 0);
+    }
+    OutputStream[] writers = this.shareOutput();
+    for (int i = 0; i < chunks.length; i++) {
+      if (writers != null) {
+        chunks[i].redirectOutput(writers[i]);
+      }
+    }
+    try {
+      chunks[0].start();
+    } catch (Executor.ExecutionException ex) {
+      for (int i = 0; writers != null && i < writers.length; i++) {
+        try {
+          writers[i].close();
+        } catch (IOException closeEx) {
+          // Just ignore it
+        }
+      }
+      throw ex;
+    }
+    runner = new Thread(() -> this.runChunks(writers));
+    runner.setDaemon(true);
+    runner.start();
+  }
+
+  /**
+   * Give each invocation its own writer onto one shared appender, so their lines
+   * don't get mixed together when they run at the same time
+   *
+   * @throws Executor.ExecutionException If the output file can't be opened
+   * @return The writer for each invocation, or null if output isn't redirected
+   */
+  private OutputStream[] shareOutput() throws Executor.ExecutionException {
+    SharedAppender appender;
+    if (outputFile != null) {
+      try {
+        appender = new SharedAppender(outputFile, appendOutput);
+      } catch (IOException ex) {
+        throw new Executor.ExecutionException(ex);
+      }
+    } else if (outputStream != null) {
+      appender = new SharedAppender(outputStream);
+    } else {
+      return null;
+    }
+    OutputStream[] writers = new OutputStream[chunks.length];
+    for (int i = 0; i < writers.length; i++) {
+      writers[i] = appender.newWriter();
+    }
+    return writers;
+  }
+
+  /**
+   * Start the rest of the invocations, keeping at most limit running, then wait
+   * for them all and combine their exit values. The first one was already started
+   * by start()
+   *
+   * @param writers The writer for each invocation, or null if output isn't
+   *                redirected
+   */
+  private void runChunks(OutputStream[] writers) {
+    int exit = 0;
+    int started = 1;
+    for (int i = 0; i < chunks.length; i++) {
+      while (started < chunks.length && started < i + limit && !destroyed) {
+        try {
+          chunks[started].start();
+        } catch (Executor.ExecutionException ex) {
+          if (writers != null) {
+            try {
+              writers[started].close();
+            } catch (IOException closeEx) {
+              // Just ignore it
+            }
+          }
+          exit = exit != 0 ? exit : 126;
+        }
+        started++;
+      }
+      try {
+        chunks[i].waitFor();
+      } catch (InterruptedException ex) {
+        // Skip this one
+      }
+      int chunkExit = chunks[i].exitValue().orElse(i < started ? 1 : 0);
+      exit = exit != 0 ? exit : chunkExit;
+    }
+    // Invocations never started because of destroy() won't close their writers
+    for (int i = started; writers != null && i < writers.length; i++) {
+      try {
+        writers[i].close();
+      } catch (IOException ex) {
+        // Just ignore it
+      }
+    }
+    exitValue = Optional.of(destroyed && exit == 0 ? 1 : exit);
+  }
+
+  @Override
+  public Optional<Integer> exitValue() {
+    return exitValue;
+  }
+
+  @Override
+  public void waitFor() throws InterruptedException {
+    if (runner != null) {
+      runner.join();
+    }
+    if (tracer != null) {
+      tracer.finished(this, exitValue);
+    }
+  }
+
+  @Override
+  public void destroy() {
+    destroyed = true;
+    for (int i = 0; i < chunks.length; i++) {
+      chunks[i].destroy();
+    }
+  }
+
+  @Override
+  public void redirectOutput(String file, boolean append) {
+    outputFile = file;
+    appendOutput = append;
+    outputStream = null;
+  }
+
+  @Override
+  public void redirectOutput(OutputStream stream) {
+    outputStream = stream;
+    outputFile = null;
+  }
+
+  @Override
+  public void redirectInput(String file) {
+    for (int i = 0; i < chunks.length; i++) {
+      chunks[i].redirectInput(file);
+    }
+  }
+
+  @Override
+  public void redirectInput(byte[] data) {
+    for (int i = 0; i < chunks.length; i++) {
+      chunks[i].redirectInput(data);
+    }
+  }
+
+  @Override
+  public void processes(List<ProcessHandle> processes) {
+    for (int i = 0; i < chunks.length; i++) {
+      chunks[i].processes(processes);
+    }
+  }
+
+  @Override
+  public String threadInfo() {
+    return chunks.length + " invocations of " + chunks[0].path();
+  }
+}
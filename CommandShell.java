@@ -1,7 +1,13 @@
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileReader;
 import java.io.IOException;
-import java.util.Scanner;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Primary entry point of the program, just contains the main method
@@ -13,23 +19,47 @@ public class CommandShell {
      * parsing it, and finally executing it.
      * When provided with command line arguments, interprets them as files, and
      * attempts to execute each line of each file as if it was a command.
+     * With "-s", runs in batch mode, reading commands from standard input, and
+     * with "-c", runs each of the following arguments as a command. In batch
+     * mode there are no prompts or history, and the shell exits with the exit
+     * code of the last command.
+     * Before the scripts, "--check" only checks the syntax of every line of the
+     * scripts, and "--preflight" checks them before running any of them.
+     * "--checkpoint" records each line that completes successfully, and
+     * "--resume" skips the lines recorded by an earlier run.
      * 
      * @param args The command line arguments passed to the shell, if any
      */
     public static void main(String[] args) {
         if (args.length == 0) {
-            Scanner scan = new Scanner(System.in);
+            ConsoleSink.OUT.setInteractive(true);
+            LineReader reader = new LineReader(System.in);
             Executor executor = new Executor();
+            // Piped commands are read a buffer at a time, while a terminal only
+            // gives the reader one line at a time
+            executor.setCommandsOnStdin(System.console() == null);
+            // Ctrl-C cancels whatever is running rather than the shell
+            InterruptSignal.handle(() -> {
+                if (!executor.interrupt()) {
+                    // Nothing to cancel, so just start a fresh prompt
+                    ConsoleSink.OUT.print("\n> ");
+                    ConsoleSink.OUT.flush();
+                }
+            });
             while (true) {
-                System.out.print("> ");
-                String userInput = scan.nextLine();
+                ConsoleSink.OUT.print("> ");
+                ConsoleSink.OUT.flush();
+                String userInput = reader.nextLine();
+                if (userInput == null) {
+                    break;
+                }
                 executor.addHistory(userInput);
-                Parser parser = new Parser(userInput);
+                Parser parser = new Parser(userInput, reader);
                 ProcessNode root;
                 try {
                     root = parser.parse();
                 } catch (Parser.SyntaxException ex) {
-                    System.out.println(ex.toString());
+                    ConsoleSink.OUT.println(ex.toString());
                     continue;
                 }
                 if (root == null) {
@@ -41,56 +71,268 @@ public class CommandShell {
                     break;
                 }
             }
-            scan.close();
             try {
+                reader.close();
+                executor.close();
+            } catch (IOException ex) {
+                // Just ignore it
+            }
+        } else if (args[0].equals("-s") || args[0].equals("-c")) {
+            // Batch mode: no prompts, no history, and exit with the status of the last command
+            Executor executor = new Executor();
+            LineReader reader;
+            String name;
+            if (args[0].equals("-s")) {
+                reader = new LineReader(System.in);
+                name = "standard input";
+                // Lines are parsed ahead on another thread
+                executor.setCommandsOnStdin(true);
+            } else {
+                String[] commands = Arrays.copyOfRange(args, 1, args.length);
+                reader = new LineReader(new StringReader(String.join("\n", commands)));
+                name = "-c";
+            }
+            runScript(reader, name, executor, null);
+            try {
+                // Standard input isn't closed: the thread reading ahead may be blocked
+                // reading it, which would hold up closing until more input came, and it
+                // is a daemon so it won't keep the shell running
+                if (args[0].equals("-c")) {
+                    reader.close();
+                }
                 executor.close();
             } catch (IOException ex) {
                 // Just ignore it
             }
+            ConsoleSink.OUT.flush();
+            System.exit(executor.lastExitValue());
         } else {
+            boolean check = false; // True to only check the syntax of the scripts
+            boolean preflight = false; // True to check the syntax of every script before running any
+            boolean checkpoint = false; // True to record which lines of the scripts complete successfully
+            boolean resume = false; // True to skip the lines recorded as completed by an earlier run
+            int first = 0; // The index of the first script
+            for (; first < args.length && args[first].startsWith("--"); first++) {
+                if (args[first].equals("--check")) {
+                    check = true;
+                } else if (args[first].equals("--preflight")) {
+                    preflight = true;
+                } else if (args[first].equals("--checkpoint")) {
+                    checkpoint = true;
+                } else if (args[first].equals("--resume")) {
+                    checkpoint = resume = true;
+                } else {
+                    ConsoleSink.OUT.println("ERROR: Unknown option: " + args[first]);
+                    ConsoleSink.OUT.flush();
+                    System.exit(2);
+                }
+            }
+            String[] scripts = Arrays.copyOfRange(args, first, args.length);
+            if (check || preflight) {
+                FlatScript[][] parsed = new FlatScript[scripts.length][];
+                boolean valid = checkScripts(scripts, parsed);
+                if (check || !valid) {
+                    ConsoleSink.OUT.flush();
+                    System.exit(valid ? 0 : 2);
+                }
+                runParsed(scripts, parsed, checkpoint, resume);
+                return;
+            }
             Executor executor = new Executor();
-            for (int i = 0; i < args.length; i++) {
-                File file = new File(args[i]);
+            for (int i = 0; i < scripts.length; i++) {
+                File file = new File(scripts[i]);
                 if (!file.exists() || !file.canRead()) {
-                    System.out.println("ERROR: File not readable: " + args[i]);
+                    ConsoleSink.OUT.println("ERROR: File not readable: " + scripts[i]);
                     continue;
                 }
-                Scanner scan;
+                LineReader reader;
                 try {
-                    scan = new Scanner(file);
+                    reader = new LineReader(new FileReader(file));
                 } catch (FileNotFoundException ex) {
-                    System.out.println("ERROR: File not found: " + args[i]);
+                    ConsoleSink.OUT.println("ERROR: File not found: " + scripts[i]);
                     continue;
                 }
-                int line = 1;
-                while (scan.hasNextLine()) {
-                    String input = scan.nextLine();
-                    Parser parser = new Parser(input);
-                    ProcessNode root;
-                    try {
-                        root = parser.parse();
-                    } catch (Parser.SyntaxException ex) {
-                        System.out.println("Syntax error in " + args[i] + " on line " + line + ":");
-                        System.out.println(ex.toString());
-                        continue;
-                    }
-                    if (root == null) {
+                Checkpoint journal = checkpoint ? openCheckpoint(scripts[i], resume) : null;
+                boolean shouldExit = runScript(reader, scripts[i], executor, journal);
+                try {
+                    reader.close();
+                } catch (IOException ex) {
+                    // Just ignore it
+                }
+                if (shouldExit) {
+                    break;
+                }
+            }
+            try {
+                executor.close();
+            } catch (IOException ex) {
+                // Just ignore it
+            }
+        }
+    }
+
+    /**
+     * Check the syntax of every line of the given scripts, reporting every syntax
+     * error found
+     * 
+     * @param scripts The paths of the scripts to check
+     * @param parsed  Filled with the parsed commands of each script, in chunks
+     * @return True if every script could be read and has no syntax errors
+     */
+    private static boolean checkScripts(String[] scripts, FlatScript[][] parsed) {
+        boolean valid = true;
+        for (int i = 0; i < scripts.length; i++) {
+            List<String> lines;
+            try {
+                lines = Files.readAllLines(Paths.get(scripts[i]), Charset.defaultCharset());
+            } catch (IOException ex) {
+                ConsoleSink.OUT.println("ERROR: File not readable: " + scripts[i]);
+                valid = false;
+                continue;
+            }
+            ScriptChecker.Result result = ScriptChecker.check(lines);
+            for (ScriptChecker.SyntaxError error : result.errors) {
+                ConsoleSink.OUT.println("Syntax error in " + scripts[i] + " on line " + error.line + ":");
+                ConsoleSink.OUT.println(error.error.toString());
+                valid = false;
+            }
+            parsed[i] = result.scripts;
+        }
+        return valid;
+    }
+
+    /**
+     * Execute scripts which have already been parsed, until the end of the scripts
+     * or until told to exit
+     * 
+     * @param scripts    The paths of the scripts
+     * @param parsed     The parsed commands of each script, in chunks
+     * @param checkpoint True to record which lines complete successfully
+     * @param resume     True to skip the lines recorded by an earlier run
+     */
+    private static void runParsed(String[] scripts, FlatScript[][] parsed, boolean checkpoint, boolean resume) {
+        Executor executor = new Executor();
+        run: for (int i = 0; i < parsed.length; i++) {
+            Checkpoint journal = checkpoint ? openCheckpoint(scripts[i], resume) : null;
+            boolean succeeded = true; // True while every line run has succeeded
+            for (FlatScript chunk : parsed[i]) {
+                for (int j = 0; j < chunk.size(); j++) {
+                    ProcessNode root = chunk.command(j);
+                    if (journal != null && !root.changesState() && journal.completed(chunk.line(j))) {
                         continue;
                     }
-                    // System.out.println(root.toString());
                     boolean shouldExit = executor.execute(root);
+                    succeeded = recordLine(journal, chunk.line(j), root, executor) && succeeded;
                     if (shouldExit) {
-                        break;
+                        finishCheckpoint(journal, succeeded);
+                        break run;
                     }
-                    line += 1;
                 }
-                scan.close();
             }
-            try {
-                executor.close();
-            } catch (IOException ex) {
-                // Just ignore it
+            finishCheckpoint(journal, succeeded);
+        }
+        try {
+            executor.close();
+        } catch (IOException ex) {
+            // Just ignore it
+        }
+    }
+
+    /**
+     * Open the checkpoint journal of a script
+     * 
+     * @param script The path of the script
+     * @param resume True to skip the lines recorded by an earlier run
+     * @return The journal, or null if it couldn't be opened
+     */
+    private static Checkpoint openCheckpoint(String script, boolean resume) {
+        try {
+            return new Checkpoint(script, resume);
+        } catch (IOException ex) {
+            ConsoleSink.OUT.println("ERROR: Could not open checkpoint journal for " + script + ": " + ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Record a line in the checkpoint journal if it completed successfully.
+     * Background commands succeed once they have been started, but are never
+     * recorded, since they may not have completed, and neither are commands
+     * which change the executor's state, like cd or export, since the lines after
+     * them depend on them being run again
+     * 
+     * @param journal  The journal, or null if not checkpointing
+     * @param line     The line number
+     * @param root     The command on the line
+     * @param executor The executor the line was run with
+     * @return True if the line succeeded
+     */
+    private static boolean recordLine(Checkpoint journal, int line, ProcessNode root, Executor executor) {
+        boolean succeeded = executor.lastExitValue() == 0;
+        if (journal != null && succeeded && !root.background && !root.changesState()) {
+            journal.record(line);
+        }
+        return succeeded;
+    }
+
+    /**
+     * Close the checkpoint journal of a script once it has stopped running. If
+     * every line succeeded there is nothing to resume, so the journal is deleted
+     * 
+     * @param journal   The journal, or null if not checkpointing
+     * @param succeeded True if every line that ran succeeded
+     */
+    private static void finishCheckpoint(Checkpoint journal, boolean succeeded) {
+        if (journal == null) {
+            return;
+        }
+        if (succeeded) {
+            journal.finish();
+            return;
+        }
+        try {
+            journal.close();
+        } catch (IOException ex) {
+            // Just ignore it
+        }
+    }
+
+    /**
+     * Execute each line of a script as if it was a command, until the end of the
+     * script or until told to exit. Upcoming lines are parsed while the current
+     * one runs
+     * 
+     * @param reader   The lines of the script
+     * @param name     The name of the script, for reporting syntax errors
+     * @param executor The executor to run the commands with
+     * @param journal  The checkpoint journal of the script, or null if not
+     *                 checkpointing
+     * @return True if the script told the shell to exit
+     */
+    private static boolean runScript(LineReader reader, String name, Executor executor, Checkpoint journal) {
+        boolean succeeded = true; // True while every line run has succeeded
+        try (ScriptReader script = new ScriptReader(reader)) {
+            ScriptReader.Line line;
+            while ((line = script.next()) != null) {
+                if (line.error != null) {
+                    ConsoleSink.OUT.println("Syntax error in " + name + " on line " + line.number + ":");
+                    ConsoleSink.OUT.println(line.error.toString());
+                    succeeded = false;
+                    continue;
+                }
+                if (journal != null && !line.root.changesState() && journal.completed(line.number)) {
+                    continue;
+                }
+                // System.out.println(line.root.toString());
+                boolean shouldExit = executor.execute(line.root);
+                succeeded = recordLine(journal, line.number, line.root, executor) && succeeded;
+                if (shouldExit) {
+                    finishCheckpoint(journal, succeeded);
+                    return true;
+                }
             }
         }
+        finishCheckpoint(journal, succeeded);
+        return false;
     }
 }
@@ -0,0 +1,264 @@
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records where the time of one command goes, for the time builtin. The
+ * command's own thread parses it and resolves each member, and whichever thread
+ * starts a member records how long starting it took and when it finished. Each
+ * process's CPU time is read from ProcessHandle.Info, which stops being
+ * available the moment the process is reaped, so a sampling thread reads it
+ * every CPU_SAMPLE_INTERVAL while the command runs and the last reading is
+ * kept.
+ */
+public class CommandTimer {
+  /**
+   * How often the CPU time of running processes is read, in milliseconds
+   */
+  static final long CPU_SAMPLE_INTERVAL = 10;
+
+  private Thread owner; // The thread running the command, the only one whose resolves are recorded
+  private long parseNanos; // How long parsing the command took
+  private IdentityHashMap<Executable, Stage> stages = new IdentityHashMap<>(); // Every member seen, by executable
+  private ArrayList<Stage> order = new ArrayList<>(); // Every member seen, in the order they were first seen
+  private Thread sampler; // Reads the CPU time of running processes
+  private volatile boolean stopped; // True once the command has finished
+
+  /**
+   * Create a timer for a command run by the current thread
+   */
+  public CommandTimer() {
+    owner = Thread.currentThread();
+  }
+
+  /**
+   * @return True if resolves made on the current thread should be recorded
+   */
+  public boolean isTiming() {
+    return Thread.currentThread() == owner && !stopped;
+  }
+
+  /**
+   * @param nanos How long parsing the command took
+   */
+  public void parsed(long nanos) {
+    parseNanos = nanos;
+  }
+
+  /**
+   * Record that a member of the command has been resolved
+   *
+   * @param executable The executable it resolved to
+   * @param label      The command and its arguments
+   * @param nanos      How long resolving it took
+   */
+  public synchronized void resolved(Executable executable, String label, long nanos) {
+    Stage stage = this.stage(executable, label);
+    stage.resolveNanos = nanos;
+  }
+
+  /**
+   * Record that a process has been started for a member of the command
+   *
+   * @param executable The executable which started it
+   * @param label      What it runs, used if it was never resolved itself
+   * @param start      When starting it began, from System.nanoTime()
+   * @param end        When starting it finished, from System.nanoTime()
+   * @param process    The process
+   */
+  public void spawned(Executable executable, String label, long start, long end, Process process) {
+    Stage stage;
+    synchronized (this) {
+      stage = this.stage(executable, label);
+      stage.spawnStart = start;
+      stage.spawnEnd = end;
+      stage.process = process.toHandle();
+      if (sampler == null && !stopped) {
+        sampler = new Thread(this::sampleForever, "command-timer");
+        sampler.setDaemon(true);
+        sampler.start();
+      }
+    }
+    process.onExit().thenRun(() -> this.exited(executable, System.nanoTime()));
+  }
+
+  /**
+   * Record that the process of a member of the command has exited, if that
+   * hasn't been recorded already
+   *
+   * @param executable The executable which started it
+   * @param end        When it exited, or was first seen to have exited, from
+   *                   System.nanoTime()
+   */
+  public synchronized void exited(Executable executable, long end) {
+    Stage stage = stages.get(executable);
+    if (stage != null && stage.end == 0) {
+      stage.end = end;
+    }
+  }
+
+  /**
+   * Record that a builtin member of the command has run
+   *
+   * @param executable The builtin
+   * @param label      The command and its arguments
+   * @param start      When it started running, from System.nanoTime()
+   * @param end        When it finished, from System.nanoTime()
+   */
+  public synchronized void ran(Executable executable, String label, long start, long end) {
+    Stage stage = this.stage(executable, label);
+    stage.spawnStart = stage.spawnEnd = start;
+    stage.end = end;
+  }
+
+  /**
+   * Find the stage of an executable, adding it if this is the first time it has
+   * been seen
+   *
+   * @param executable The executable
+   * @param label      The command and its arguments
+   * @return The stage
+   */
+  private Stage stage(Executable executable, String label) {
+    Stage stage = stages.get(executable);
+    if (stage == null) {
+      stage = new Stage(executable, label);
+      stages.put(executable, stage);
+      order.add(stage);
+    }
+    return stage;
+  }
+
+  /**
+   * Read the CPU time of every running process, and every process below them,
+   * until the command finishes
+   */
+  private void sampleForever() {
+    while (!stopped) {
+      this.sample();
+      try {
+        Thread.sleep(CPU_SAMPLE_INTERVAL);
+      } catch (InterruptedException ex) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Read the CPU time of every running process once, keeping the latest reading
+   * of each
+   */
+  private void sample() {
+    ArrayList<Stage> running = new ArrayList<>();
+    synchronized (this) {
+      for (Stage stage : order) {
+        if (stage.process != null && stage.end == 0) {
+          running.add(stage);
+        }
+      }
+    }
+    for (Stage stage : running) {
+      stage.readCpu(stage.process);
+      stage.process.descendants().forEach(stage::readCpu);
+    }
+  }
+
+  /**
+   * Stop recording, because the command has finished
+   */
+  public void stop() {
+    stopped = true;
+    Thread running;
+    synchronized (this) {
+      running = sampler;
+    }
+    if (running != null) {
+      running.interrupt();
+    }
+  }
+
+  /**
+   * Describe where the time went
+   *
+   * @param wallNanos How long the whole command took
+   * @return The lines of the report
+   */
+  public synchronized List<String> report(long wallNanos) {
+    ArrayList<String> lines = new ArrayList<>();
+    long overhead = parseNanos;
+    long cpu = 0;
+    for (Stage stage : order) {
+      overhead += stage.resolveNanos + (stage.spawnEnd - stage.spawnStart);
+      cpu += stage.cpuNanos();
+    }
+    lines.add(String.format("real %s  cpu %s  shell %s  (parse %s)%n", format(wallNanos), format(cpu),
+        format(overhead), format(parseNanos)));
+    lines.add(String.format("  %9s %9s %9s %9s %4s  %s%n", "resolve", "spawn", "wait", "cpu", "exit", "command"));
+    for (Stage stage : order) {
+      boolean started = stage.spawnEnd != 0;
+      String spawn = stage.process == null ? "-" : format(stage.spawnEnd - stage.spawnStart);
+      String wait = started && stage.end != 0 ? format(stage.end - stage.spawnEnd) : "-";
+      String exit = stage.executable.exitValue().map(String::valueOf).orElse("-");
+      lines.add(String.format("  %9s %9s %9s %9s %4s  %s%n", format(stage.resolveNanos), spawn, wait,
+          stage.process == null ? "-" : format(stage.cpuNanos()), exit, stage.label));
+    }
+    return lines;
+  }
+
+  /**
+   * Format a number of nanoseconds, in whichever unit reads best
+   *
+   * @param nanos The time
+   * @return The time, with its unit
+   */
+  static String format(long nanos) {
+    if (nanos < 1_000_000) {
+      return String.format("%.1fus", nanos / 1e3);
+    } else if (nanos < 1_000_000_000) {
+      return String.format("%.1fms", nanos / 1e6);
+    }
+    return String.format("%.3fs", nanos / 1e9);
+  }
+
+  /**
+   * One member of the command
+   */
+  private static class Stage {
+    Executable executable; // The executable of the member
+    String label; // The command and its arguments
+    long resolveNanos; // How long resolving it took
+    long spawnStart; // When starting it began, from System.nanoTime(), 0 if it never started
+    long spawnEnd; // When starting it finished, from System.nanoTime(), 0 if it never started
+    volatile long end; // When it finished, from System.nanoTime(), 0 until then
+    ProcessHandle process; // The process started for it, null for builtins
+    Map<Long, Long> cpu = new HashMap<>(); // The latest CPU time read for each of its processes, by pid
+
+    Stage(Executable executable, String label) {
+      this.executable = executable;
+      this.label = label;
+    }
+
+    /**
+     * Read the CPU time of one of this member's processes
+     *
+     * @param handle The process
+     */
+    synchronized void readCpu(ProcessHandle handle) {
+      handle.info().totalCpuDuration().map(Duration::toNanos).ifPresent(nanos -> cpu.put(handle.pid(), nanos));
+    }
+
+    /**
+     * @return The CPU time of all of this member's processes, as last read
+     */
+    synchronized long cpuNanos() {
+      long total = 0;
+      for (long nanos : cpu.values()) {
+        total += nanos;
+      }
+      return total;
+    }
+  }
+}
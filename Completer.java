@@ -0,0 +1,355 @@
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Completes partly typed commands and paths. Commands come from the builtins
+ * and the directories on the PATH, and paths from the directory the prefix
+ * points into. Every name is kept in a prefix trie, so a lookup only walks the
+ * prefix and the matches below it. Before each lookup, the directories involved
+ * are checked for changes by their modification time, and only the ones that
+ * changed are listed again, adding and removing just the names that differ.
+ */
+public class Completer {
+  /**
+   * The most directories whose entries are kept for completing paths
+   */
+  static final int DIRECTORY_CACHE_SIZE = 64;
+
+  private Trie commands = new Trie(); // The builtins and everything on the PATH
+  private HashMap<Path, Source> pathSources = new HashMap<>(); // The directories on the PATH that commands holds
+  private LinkedHashMap<Path, Source> directories = new LinkedHashMap<>(16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Path, Source> eldest) {
+      return size() > DIRECTORY_CACHE_SIZE;
+    }
+  }; // Recently completed directories, each with its own trie
+
+  /**
+   * Create a completer, which knows every builtin
+   */
+  public Completer() {
+    for (String builtin : BuiltinExecutable.ALL_BUILTINS) {
+      commands.add(builtin);
+    }
+  }
+
+  /**
+   * Complete the first word of a command, which can be a builtin, a command on
+   * the PATH, or a path
+   *
+   * @param prefix The word typed so far
+   * @param path   The PATH to look for commands in
+   * @param cwd    The directory relative paths start in
+   * @return Every completion, in sorted order
+   */
+  public synchronized List<String> completeCommand(String prefix, String path, String cwd) {
+    if (prefix.indexOf('/') >= 0) {
+      return this.completePath(prefix, cwd);
+    }
+    this.refreshPath(path);
+    ArrayList<String> matches = new ArrayList<>();
+    commands.collect(prefix, matches);
+    return matches;
+  }
+
+  /**
+   * Complete a path, directories having a '/' added to the end
+   *
+   * @param prefix The path typed so far
+   * @param cwd    The directory relative paths start in
+   * @return Every completion, in sorted order
+   */
+  public synchronized List<String> completePath(String prefix, String cwd) {
+    int slash = prefix.lastIndexOf('/');
+    String typedDir = prefix.substring(0, slash + 1); // The directory part as typed
+    String namePrefix = prefix.substring(slash + 1);
+    Path dir = Paths.get(cwd).resolve(typedDir.isEmpty() ? "." : typedDir).normalize();
+    Source source = directories.get(dir);
+    if (source == null) {
+      source = new Source(true);
+      directories.put(dir, source);
+    }
+    source.refresh(dir);
+    ArrayList<String> names = new ArrayList<>();
+    source.trie.collect(namePrefix, names);
+    ArrayList<String> matches = new ArrayList<>(names.size());
+    for (String name : names) {
+      // Like globs, hidden names are only completed if the prefix asks for them
+      if (!name.startsWith(".") || namePrefix.startsWith(".")) {
+        matches.add(typedDir + name);
+      }
+    }
+    return matches;
+  }
+
+  /**
+   * Bring the command trie up to date with the PATH, listing again only the
+   * directories which have been added to the PATH or modified since they were
+   * listed
+   *
+   * @param path The PATH
+   */
+  private void refreshPath(String path) {
+    HashSet<Path> current = new HashSet<>();
+    for (String entry : path.split(":")) {
+      if (!entry.isEmpty()) {
+        current.add(Paths.get(entry));
+      }
+    }
+    Iterator<Map.Entry<Path, Source>> iter = pathSources.entrySet().iterator();
+    while (iter.hasNext()) {
+      Map.Entry<Path, Source> source = iter.next();
+      if (!current.contains(source.getKey())) {
+        // No longer on the PATH
+        source.getValue().clear();
+        iter.remove();
+      }
+    }
+    for (Path dir : current) {
+      Source source = pathSources.get(dir);
+      if (source == null) {
+        source = new Source(commands);
+        pathSources.put(dir, source);
+      }
+      source.refresh(dir);
+    }
+  }
+
+  /**
+   * The names in one directory, and the trie they have been added to
+   */
+  private static class Source {
+    private Trie trie; // Where the names are added
+    private boolean markDirectories; // True to add a '/' to the end of directory names
+    private FileTime modified; // The modification time of the directory when it was listed, null if never
+    private HashSet<String> names = new HashSet<>(); // The names added to the trie
+
+    /**
+     * Create a source which adds its names to a shared trie
+     *
+     * @param trie The trie
+     */
+    Source(Trie trie) {
+      this.trie = trie;
+    }
+
+    /**
+     * Create a source with a trie of its own
+     *
+     * @param markDirectories True to add a '/' to the end of directory names
+     */
+    Source(boolean markDirectories) {
+      this.trie = new Trie();
+      this.markDirectories = markDirectories;
+    }
+
+    /**
+     * List the directory again if it has been modified, updating the trie with
+     * just the names which were added or removed
+     *
+     * @param dir The directory
+     */
+    void refresh(Path dir) {
+      FileTime now;
+      try {
+        now = Files.getLastModifiedTime(dir);
+      } catch (IOException ex) {
+        // Gone, or never there
+        this.clear();
+        return;
+      }
+      if (now.equals(modified)) {
+        return;
+      }
+      HashSet<String> listed = new HashSet<>();
+      try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+        for (Path entry : stream) {
+          String name = entry.getFileName().toString();
+          listed.add(markDirectories && Files.isDirectory(entry) ? name + "/" : name);
+        }
+      } catch (IOException ex) {
+        this.clear();
+        return;
+      }
+      modified = now;
+      for (String name : names) {
+        if (!listed.contains(name)) {
+          trie.remove(name);
+        }
+      }
+      for (String name : listed) {
+        if (!names.contains(name)) {
+          trie.add(name);
+        }
+      }
+      names = listed;
+    }
+
+    /**
+     * Remove every name from the trie
+     */
+    void clear() {
+      for (String name : names) {
+        trie.remove(name);
+      }
+      names.clear();
+      modified = null;
+    }
+  }
+
+  /**
+   * A prefix trie of words. A word can be added more than once, for example when
+   * two directories on the PATH have a command with the same name, and stays
+   * until it has been removed as many times
+   */
+  static class Trie {
+    private Node root = new Node();
+
+    /**
+     * Add a word
+     *
+     * @param word The word
+     */
+    void add(String word) {
+      Node node = root;
+      node.words++;
+      for (int i = 0; i < word.length(); i++) {
+        node = node.child(word.charAt(i), true);
+        node.words++;
+      }
+      node.count++;
+    }
+
+    /**
+     * Remove a word which was added, dropping any nodes which no longer lead to
+     * a word
+     *
+     * @param word The word
+     */
+    void remove(String word) {
+      Node node = root;
+      Node[] path = new Node[word.length() + 1];
+      path[0] = root;
+      for (int i = 0; i < word.length(); i++) {
+        node = node.child(word.charAt(i), false);
+        if (node == null) {
+          return;
+        }
+        path[i + 1] = node;
+      }
+      if (node.count == 0) {
+        return;
+      }
+      node.count--;
+      for (int i = 0; i < path.length; i++) {
+        path[i].words--;
+        if (i > 0 && path[i].words == 0) {
+          path[i - 1].removeChild(word.charAt(i - 1));
+          return;
+        }
+      }
+    }
+
+    /**
+     * Find every word starting with a prefix
+     *
+     * @param prefix  The prefix
+     * @param matches The list to add the words to, in sorted order
+     */
+    void collect(String prefix, List<String> matches) {
+      Node node = root;
+      for (int i = 0; i < prefix.length() && node != null; i++) {
+        node = node.child(prefix.charAt(i), false);
+      }
+      if (node != null) {
+        collect(node, new StringBuilder(prefix), matches);
+      }
+    }
+
+    /**
+     * Add every word at or below a node
+     *
+     * @param node    The node
+     * @param word    The characters leading to the node
+     * @param matches The list to add the words to
+     */
+    private static void collect(Node node, StringBuilder word, List<String> matches) {
+      if (node.count > 0) {
+        matches.add(word.toString());
+      }
+      for (int i = 0; i < node.size; i++) {
+        word.append(node.keys[i]);
+        collect(node.children[i], word, matches);
+        word.setLength(word.length() - 1);
+      }
+    }
+
+    /**
+     * One character of a word, with its children kept sorted by character
+     */
+    private static class Node {
+      private char[] keys = new char[0]; // The character of each child
+      private Node[] children = new Node[0]; // The children, in the same order as keys
+      private int size; // How many children there are
+      private int count; // How many times the word ending here was added
+      private int words; // How many words end at or below here, counting repeats
+
+      /**
+       * Find a child, optionally creating it
+       *
+       * @param key    The character of the child
+       * @param create True to create the child if it doesn't exist
+       * @return The child, or null if it doesn't exist and create is false
+       */
+      Node child(char key, boolean create) {
+        int index = Arrays.binarySearch(keys, 0, size, key);
+        if (index >= 0) {
+          return children[index];
+        } else if (!create) {
+          return null;
+        }
+        index = -1 - index;
+        if (size == keys.length) {
+          keys = Arrays.copyOf(keys, Math.max(2, size * 2));
+          children = Arrays.copyOf(children, keys.length);
+        }
+        System.arraycopy(keys, index, keys, index + 1, size - index);
+        System.arraycopy(children, index, children, index + 1, size - index);
+        keys[index] = key;
+        children[index] = new Node();
+        size++;
+        return children[index];
+      }
+
+      /**
+       * Remove a child
+       *
+       * @param key The character of the child
+       */
+      void removeChild(char key) {
+        int index = Arrays.binarySearch(keys, 0, size, key);
+        if (index < 0) {
+          return;
+        }
+        System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+        System.arraycopy(children, index + 1, children, index, size - index - 1);
+        size--;
+        children[size] = null;
+      }
+    }
+  }
+}
@@ -0,0 +1,133 @@
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The single place the shell writes to the terminal from. Output is collected
+ * in a large buffer and written out in big chunks instead of one small write
+ * per string. When interactive, the buffer is flushed at the end of every line
+ * so output shows up straight away; otherwise it is flushed only once full.
+ * Either way it is flushed before any child process writing directly to the
+ * terminal is started, so output stays in order. Closing it doesn't flush, since
+ * builtins close their output once they are done, and flushing after every
+ * builtin would undo the buffering.
+ */
+public class ConsoleSink extends OutputStream {
+  /**
+   * How much output is collected before it is written to the terminal
+   */
+  static final int BUFFER_SIZE = 1 << 16;
+
+  /**
+   * The sink for the shell's standard output
+   */
+  public static final ConsoleSink OUT = new ConsoleSink(new FileOutputStream(FileDescriptor.out));
+
+  static {
+    // Don't lose buffered output however the shell exits
+    Runtime.getRuntime().addShutdownHook(new Thread(OUT::flush));
+  }
+
+  private OutputStream terminal; // Where the output ends up
+  private byte[] buffer = new byte[BUFFER_SIZE]; // Output not yet written to the terminal
+  private int count; // How many bytes of buffer are in use
+  private boolean interactive; // True to flush at the end of each line, false to flush only when full
+
+  /**
+   * Create a console sink
+   * 
+   * @param terminal The stream to write to
+   */
+  private ConsoleSink(OutputStream terminal) {
+    this.terminal = terminal;
+  }
+
+  /**
+   * Set whether a user is watching the output as it happens
+   * 
+   * @param interactive True to flush at the end of each line, false to flush
+   *                    only when the buffer is full
+   */
+  public synchronized void setInteractive(boolean interactive) {
+    this.interactive = interactive;
+  }
+
+  /**
+   * Write a string
+   * 
+   * @param str The string to write
+   */
+  public void print(String str) {
+    byte[] bytes = str.getBytes();
+    write(bytes, 0, bytes.length);
+  }
+
+  /**
+   * Write a string followed by a line break
+   * 
+   * @param str The string to write
+   */
+  public void println(String str) {
+    print(str + "\n");
+  }
+
+  @Override
+  public void write(int b) {
+    write(new byte[] { (byte) b }, 0, 1);
+  }
+
+  @Override
+  public synchronized void write(byte[] bytes, int offset, int length) {
+    if (count + length > buffer.length) {
+      flush();
+      if (length > buffer.length) {
+        // Too big to be worth buffering
+        writeTerminal(bytes, offset, length);
+        return;
+      }
+    }
+    System.arraycopy(bytes, offset, buffer, count, length);
+    count += length;
+    if (interactive) {
+      for (int i = offset + length - 1; i >= offset; i--) {
+        if (bytes[i] == '\n') {
+          flush();
+          break;
+        }
+      }
+    }
+  }
+
+  @Override
+  public synchronized void flush() {
+    if (count > 0) {
+      writeTerminal(buffer, 0, count);
+      count = 0;
+    }
+  }
+
+  /**
+   * Write straight to the terminal
+   * 
+   * @param bytes  The bytes to write
+   * @param offset Where in bytes to start
+   * @param length How many bytes to write
+   */
+  private void writeTerminal(byte[] bytes, int offset, int length) {
+    try {
+      terminal.write(bytes, offset, length);
+    } catch (IOException ex) {
+      // The terminal is gone, there's nowhere left to put the output
+    }
+  }
+
+  /**
+   * The terminal stays open, and output is flushed at the end of a line or when
+   * the buffer fills, the same as if this hadn't been closed, so closing does
+   * nothing
+   */
+  @Override
+  public void close() {
+  }
+}
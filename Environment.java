@@ -0,0 +1,139 @@
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The environment variables of a session. Rather than a full copy of the
+ * environment, only the variables changed from the shell's own environment are
+ * stored, and an Environment is never modified: export and unset make a new one
+ * with one more change. Executables can hold on to the Environment they were
+ * created with while the session moves on, and processes are given just the
+ * changes, so starting one doesn't copy the whole environment unless it has to.
+ */
+public class Environment {
+  private static final Environment INHERITED = new Environment(Collections.emptyMap()); // No changes at all
+
+  private Map<String, String> changes; // Variables which differ from the shell's environment, null if unset
+
+  /**
+   * Create an environment
+   *
+   * @param changes The variables which differ from the shell's environment, which
+   *                must not be modified afterwards
+   */
+  private Environment(Map<String, String> changes) {
+    this.changes = changes;
+  }
+
+  /**
+   * @return The environment the shell was started with
+   */
+  public static Environment inherited() {
+    return INHERITED;
+  }
+
+  /**
+   * Get the value of a variable
+   *
+   * @param name The name of the variable
+   * @return The value, or null if it isn't set
+   */
+  public String get(String name) {
+    if (changes.containsKey(name)) {
+      return changes.get(name);
+    }
+    return System.getenv(name);
+  }
+
+  /**
+   * Make a copy of this environment with a variable set
+   *
+   * @param name  The name of the variable
+   * @param value The value of the variable
+   * @return The new environment
+   */
+  public Environment with(String name, String value) {
+    return this.change(name, value);
+  }
+
+  /**
+   * Make a copy of this environment with a variable unset
+   *
+   * @param name The name of the variable
+   * @return The new environment
+   */
+  public Environment without(String name) {
+    return this.change(name, null);
+  }
+
+  /**
+   * Make a copy of this environment with one variable changed. Only the changes
+   * are copied, and a variable set back to the shell's value stops being a change
+   *
+   * @param name  The name of the variable
+   * @param value The value of the variable, or null to unset it
+   * @return The new environment
+   */
+  private Environment change(String name, String value) {
+    HashMap<String, String> changed = new HashMap<>(changes);
+    String inherited = System.getenv(name);
+    if (value == null ? inherited == null : value.equals(inherited)) {
+      changed.remove(name);
+    } else {
+      changed.put(name, value);
+    }
+    return changed.isEmpty() ? INHERITED : new Environment(changed);
+  }
+
+  /**
+   * @return The variables which differ from the shell's environment, sorted by
+   *         name, with null for those which are unset
+   */
+  public Map<String, String> changes() {
+    return Collections.unmodifiableMap(new TreeMap<>(changes));
+  }
+
+  /**
+   * @return True if this is the shell's own environment, with nothing changed
+   */
+  public boolean isInherited() {
+    return changes.isEmpty();
+  }
+
+  /**
+   * Apply the changes to the environment of a process about to be started, which
+   * starts out as the shell's environment
+   *
+   * @param builder The builder of the process
+   */
+  public void applyTo(ProcessBuilder builder) {
+    if (changes.isEmpty()) {
+      // Leave the builder alone, so it never makes its own copy of the environment
+      return;
+    }
+    Map<String, String> environment = builder.environment();
+    for (Map.Entry<String, String> change : changes.entrySet()) {
+      if (change.getValue() == null) {
+        environment.remove(change.getKey());
+      } else {
+        environment.put(change.getKey(), change.getValue());
+      }
+    }
+  }
+
+  /**
+   * @return Every variable that is set, sorted by name
+   */
+  public Map<String, String> toMap() {
+    TreeMap<String, String> variables = new TreeMap<>(System.getenv());
+    for (Map.Entry<String, String> change : changes.entrySet()) {
+      if (change.getValue() == null) {
+        variables.remove(change.getKey());
+      } else {
+        variables.put(change.getKey(), change.getValue());
+      }
+    }
+    return variables;
+  }
+}
@@ -1,3 +1,5 @@
+import java.io.OutputStream;
+import java.util.List;
 import java.util.Optional;
 
 /**
@@ -27,6 +29,12 @@ public interface Executable {
    */
   public void waitFor() throws InterruptedException;
 
+  /**
+   * Stop execution, killing any processes along with everything they started.
+   * Does nothing if execution has already completed
+   */
+  public void destroy();
+
   /**
    * Set input redirection, so input comes from the given file
    * 
@@ -34,6 +42,13 @@ public interface Executable {
    */
   public void redirectInput(String file);
 
+  /**
+   * Set input redirection, so input comes from the given data in memory
+   * 
+   * @param data The data to use as input
+   */
+  public void redirectInput(byte[] data);
+
   /**
    * Set output redirection, so output goes to a given file, and set whether to
    * overwrite or append to an existing file
@@ -43,6 +58,22 @@ public interface Executable {
    */
   public void redirectOutput(String file, boolean append);
 
+  /**
+   * Set output redirection, so output is written to the given stream instead of
+   * a file. The stream is closed once the executable has finished writing to it
+   * 
+   * @param stream The stream to write output to
+   */
+  public void redirectOutput(OutputStream stream);
+
+  /**
+   * Add the processes this executable has started, not including the processes
+   * they started in turn
+   * 
+   * @param processes The list to add the processes to
+   */
+  public void processes(List<ProcessHandle> processes);
+
   /**
    * Get information about the thread running this Executable
    * 
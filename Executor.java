@@ -2,17 +2,57 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Class in charge of executing commands, which are now represented by a tree of
  * ProcessNodes. It is also responsible for tracking execution state.
  */
 public class Executor implements Closeable {
+  /**
+   * The most output of a command substitution held in memory before spilling into
+   * a temporary file
+   */
+  static final int CAPTURE_MEMORY_LIMIT = 1 << 20;
+
+  /**
+   * The exit code of a command killed for running too long
+   */
+  static final int TIMED_OUT = 124;
+
+  /**
+   * The exit code of a command killed for writing too much output
+   */
+  static final int OUTPUT_EXCEEDED = 125;
+
+  /**
+   * A set of all the options that can be changed with the set builtin
+   */
+  public static final HashSet<String> ALL_OPTIONS = new HashSet<String>(Arrays.asList("keeporder", "argchunk",
+      "argchunkparallel"));
+
   private String cwd; // The current working directory of the process
   private String prevCwd; // The previous working directory of the process, used for "cd -"
   private boolean shouldExit; // If the shell should exit after completing the current command
   private File historyFile; // A file object for the history file
   private FileWriter historyWriter; // Used to write each entered command to the history
+  private int lastExitValue; // The exit code of the last command executed
+  private Set<String> options = ConcurrentHashMap.newKeySet(); // The options which are turned on
+  private Completer completer = new Completer(); // Completes commands and paths, kept up to date between uses
+  private Set<Executable> foreground = ConcurrentHashMap.newKeySet(); // The commands running in the foreground, destroyed on interrupt
+  private volatile long timeLimit; // The longest a command can run for in milliseconds, 0 for no limit
+  private volatile long outputLimit; // The most bytes a command can write to the terminal, 0 for no limit
+  private volatile Environment environment = Environment.inherited(); // The environment variables of this session
+  private volatile PathCache pathCache = new PathCache(""); // Where commands were found on the PATH
+  private Frecency frecency = new Frecency(new File(System.getProperty("user.home"), ".jshfrecency")); // Visited directories, for z
+  private JobMonitor jobs = new JobMonitor(); // The jobs started in the background, and what they cost
+  private volatile CommandTimer timer; // Records where the time of the command being timed goes, null if none is
+  private volatile int interrupts; // How many times the foreground has been cancelled, only changed by interrupt()
+  private volatile long parseNanos; // How long parsing the command being resolved took, 0 if it wasn't parsed
+  private volatile boolean commandsOnStdin; // True if the shell reads commands from standard input ahead of running them
 
   /**
    * Construct an executor, initialization is getting the initial cwd and creating
@@ -42,34 +82,216 @@ public class Executor implements Closeable {
    * @return True to exit, false to continue running
    */
   public boolean execute(ProcessNode rootNode) {
-    Executable root = rootNode.execute(this);
+    // Every member writing to the terminal shares the one limit, and members
+    // redirecting their output aren't limited
+    LimitedOutputStream limitedOutput = outputLimit > 0 ? new LimitedOutputStream(ConsoleSink.OUT, outputLimit) : null;
+    String description = rootNode.background ? rootNode.commandLine() : null;
+    // Only builtins made while resolving the line, like time, see how long
+    // parsing it took
+    parseNanos = rootNode.parseNanos();
+    Executable root;
+    try {
+      root = rootNode.execute(this, limitedOutput);
+    } finally {
+      parseNanos = 0;
+    }
+    return this.execute(root, description, limitedOutput);
+  }
+
+  /**
+   * Execute a resolved command, enforcing the session's limits
+   * 
+   * @param root          The executable for the whole command, or null if it
+   *                      failed to resolve
+   * @param background    The command as typed if it runs in the background, or
+   *                      null to run it in the foreground
+   * @param limitedOutput The stream the command writes to instead of the
+   *                      terminal, or null if there's no output limit
+   * @return True to exit, false to continue running
+   */
+  private boolean execute(Executable root, String background, LimitedOutputStream limitedOutput) {
     if (root == null) {
+      lastExitValue = 127;
       return false;
     }
+    Metrics.COMMANDS.increment();
+    if (limitedOutput != null) {
+      limitedOutput.setExecutable(root);
+    }
+    if (background != null) {
+      return this.executeBackground(root, background);
+    }
+    foreground.add(root);
+    try {
+      Watchdog.Watch watch = null;
+      if (root instanceof BuiltinExecutable) {
+        // A lone builtin in the foreground can run on this thread, rather than
+        // starting a thread just to wait for it
+        if (timeLimit > 0) {
+          watch = Watchdog.watch(root, timeLimit);
+        }
+        ((BuiltinExecutable) root).run();
+      } else {
+        try {
+          root.start();
+        } catch (Executor.ExecutionException ex) {
+          ConsoleSink.OUT.println("ERROR: " + ex.getMessage());
+          lastExitValue = 126;
+          return false;
+        }
+        if (timeLimit > 0) {
+          watch = Watchdog.watch(root, timeLimit);
+        }
+        try {
+          root.waitFor();
+        } catch (InterruptedException ex) {
+          // Just silently fail
+        }
+      }
+      lastExitValue = root.exitValue().orElse(1);
+      this.checkLimits(watch, limitedOutput);
+    } finally {
+      foreground.remove(root);
+    }
+    return shouldExit;
+  }
+
+  /**
+   * Start a resolved command in the background
+   * 
+   * @param root        The executable for the whole command
+   * @param description The command as typed
+   * @return True to exit, false to continue running
+   */
+  private boolean executeBackground(Executable root, String description) {
     try {
       root.start();
     } catch (Executor.ExecutionException ex) {
-      System.out.println("ERROR: " + ex.getMessage());
+      ConsoleSink.OUT.println("ERROR: " + ex.getMessage());
+      lastExitValue = 126;
       return false;
     }
-    if (!rootNode.background) {
-      try {
-        root.waitFor();
-      } catch (InterruptedException ex) {
-        // Just silently fail
-      }
-    } else {
-      System.out.println(root.threadInfo());
+    if (timeLimit > 0) {
+      // The watch is left to fire, destroying the job if it is still running
+      Watchdog.watch(root, timeLimit);
     }
+    JobMonitor.Job job = jobs.add(description, root);
+    ConsoleSink.OUT.println("[" + job.id() + "] " + job.description());
+    lastExitValue = 0;
     return shouldExit;
   }
 
+  /**
+   * Cancel whatever is running in the foreground, killing every process it
+   * started and stopping any builtins, as on Ctrl-C. Background jobs are left
+   * alone
+   * 
+   * @return True if anything was running in the foreground
+   */
+  public boolean interrupt() {
+    interrupts++;
+    boolean running = false;
+    for (Executable executable : foreground) {
+      executable.destroy();
+      running = true;
+    }
+    return running;
+  }
+
+  /**
+   * Once a foreground command has finished, stop watching it, and report if it
+   * was killed for going over a limit
+   * 
+   * @param watch         The watch on the command's time, or null if there's no
+   *                      time limit
+   * @param limitedOutput The command's limited output, or null if there's no
+   *                      output limit
+   */
+  private void checkLimits(Watchdog.Watch watch, LimitedOutputStream limitedOutput) {
+    if (watch != null && watch.cancel()) {
+      ConsoleSink.OUT.println("ERROR: Killed after running for the time limit of " + timeLimit + "ms.");
+      lastExitValue = TIMED_OUT;
+    } else if (limitedOutput != null && limitedOutput.exceeded()) {
+      ConsoleSink.OUT.println("ERROR: Killed after reaching the output limit of " + outputLimit + " bytes.");
+      lastExitValue = OUTPUT_EXCEEDED;
+    }
+  }
+
+  /**
+   * @return The exit code of the last command executed in the foreground, 127 if
+   *         it couldn't be resolved, or 126 if it couldn't be started
+   */
+  public int lastExitValue() {
+    return lastExitValue;
+  }
+
+  /**
+   * Execute the command specified by the given node and capture its output, for
+   * command substitution. The output is collected in memory rather than going
+   * through a file or a separate process
+   * 
+   * @param rootNode The root node of the ProcessNode tree representing the
+   *                 command to be run
+   * @throws ExecutionException If the command could not be resolved or started
+   * @return Everything the command wrote to its output
+   */
+  public String capture(ProcessNode rootNode) throws ExecutionException {
+    Executable root = rootNode.execute(this);
+    if (root == null) {
+      throw new ExecutionException("Command substitution failed: " + rootNode.toString());
+    }
+    return this.capture(root);
+  }
+
+  /**
+   * Run a resolved command and capture its output, for command substitution.
+   * It runs in the foreground, so Ctrl-C cancels it, and within the session's
+   * time limit
+   * 
+   * @param root The executable for the whole command
+   * @throws ExecutionException If the command could not be started, or was
+   *                            cancelled or killed before it finished
+   * @return Everything the command wrote to its output
+   */
+  public String capture(Executable root) throws ExecutionException {
+    OutputBuffer buffer = new OutputBuffer(CAPTURE_MEMORY_LIMIT);
+    int interrupted = interrupts;
+    Watchdog.Watch watch = null;
+    foreground.add(root);
+    try {
+      root.redirectOutput(buffer);
+      root.start();
+      if (timeLimit > 0) {
+        watch = Watchdog.watch(root, timeLimit);
+      }
+      root.waitFor();
+      if (watch != null && watch.cancel()) {
+        throw new ExecutionException("Command substitution killed after running for the time limit of " + timeLimit
+            + "ms.");
+      } else if (interrupts != interrupted) {
+        // The command using the output shouldn't run on what was captured so far
+        throw new ExecutionException("Command substitution interrupted.");
+      }
+      return buffer.toString();
+    } catch (InterruptedException ex) {
+      throw new ExecutionException(ex);
+    } finally {
+      if (watch != null) {
+        watch.cancel();
+      }
+      foreground.remove(root);
+      buffer.discard();
+    }
+  }
+
   /**
    * Resolve a command into an executable. Steps, in order:
    * 1) Check if the command is a builtin command. If so, use that.
    * 2) Check if the command starts with "./". If so, search the current directory
    * for the file and execute it if possible.
-   * 3) Check if the command is a file in $PATH. If so, use that.
+   * 3) Check if the command is a file in $PATH. If so, use that. Where each
+   * command was found is remembered until PATH changes, and only needs checking
+   * that it is still there.
    * 4) Command is not found, use levenshtien distance to find similar commands
    * are suggest the top 5.
    * 
@@ -81,29 +303,116 @@ public class Executor implements Closeable {
    * @return An executable representing the command and arguments provided
    */
   public Executable resolveCommand(String cmd, String[] args) throws ExecutionException {
+    CommandTimer timing = timer;
+    ShellEvents.Resolve event = ShellEvents.enabled ? new ShellEvents.Resolve() : null;
+    if (event != null) {
+      event.begin();
+    }
+    long start = System.nanoTime();
+    Executable executable = null;
+    try {
+      executable = this.findCommand(cmd, args);
+    } finally {
+      long end = System.nanoTime();
+      if (event != null) {
+        event.end();
+        if (event.shouldCommit()) {
+          event.command = ShellEvents.truncate(BuiltinExecutable.joinCommand(words(cmd, args)));
+          event.resolved = executable instanceof BuiltinExecutable ? "builtin"
+              : executable instanceof FileExecutable ? ((FileExecutable) executable).path()
+                  : executable == null ? null : executable.threadInfo();
+          event.commit();
+        }
+      }
+      if (executable != null && timing != null && timing.isTiming()) {
+        timing.resolved(executable, BuiltinExecutable.joinCommand(words(cmd, args)), end - start);
+      }
+    }
+    return executable;
+  }
+
+  /**
+   * @param cmd  A command
+   * @param args The arguments of the command
+   * @return The command followed by its arguments
+   */
+  private static String[] words(String cmd, String[] args) {
+    String[] words = new String[args.length + 1];
+    words[0] = cmd;
+    System.arraycopy(args, 0, words, 1, args.length);
+    return words;
+  }
+
+  /**
+   * Find the builtin or file to execute for a command
+   * 
+   * @param cmd  The command
+   * @param args The arguments of the command
+   * @throws ExecutionException If the command could not be found
+   * @return The executable for the command
+   */
+  private Executable findCommand(String cmd, String[] args) throws ExecutionException {
     if (BuiltinExecutable.ALL_BUILTINS.contains(cmd)) {
       return new BuiltinExecutable(cmd, args, this);
     } else if (cmd.startsWith("./")) {
       File exec = new File(cwd, cmd);
       if (exec.canExecute()) {
-        return new FileExecutable(exec.getAbsolutePath(), args, this);
+        return this.fileExecutable(exec.getAbsolutePath(), args);
       } else {
         throw new ExecutionException("Not executable: " + exec.getAbsolutePath());
       }
     } else {
-      String path = System.getenv("PATH");
+      String path = this.path();
+      PathCache cache = pathCache;
+      if (!cache.path.equals(path)) {
+        // PATH has changed, so every command could resolve differently
+        cache = pathCache = new PathCache(path);
+      }
+      String exec = cache.commands.get(cmd);
+      if (exec != null && new File(exec).canExecute()) {
+        Metrics.RESOLVE_HITS.increment();
+        return this.fileExecutable(exec, args);
+      }
+      Metrics.RESOLVE_MISSES.increment();
       String[] splitPath = path.split(":");
       for (int i = 0; i < splitPath.length; i++) {
         File pathDir = new File(splitPath[i]);
         if (pathDir.exists() && pathDir.isDirectory()) {
           File maybeExec = new File(splitPath[i], cmd);
           if (maybeExec.exists() && maybeExec.canExecute()) {
-            return new FileExecutable(maybeExec.getAbsolutePath(), args, this);
+            cache.commands.put(cmd, maybeExec.getAbsolutePath());
+            return this.fileExecutable(maybeExec.getAbsolutePath(), args);
           }
         }
       }
+      cache.commands.remove(cmd);
+    }
+    throw new ExecutionException("Command not found: " + cmd + Utilities.findBestMatch(cmd, this.path()));
+  }
+
+  /**
+   * @return The PATH of this session, which is empty if it has been unset
+   */
+  public String path() {
+    String path = environment.get("PATH");
+    return path == null ? "" : path;
+  }
+
+  /**
+   * Create the executable for an external command. If argument chunking is on
+   * and the arguments are too long for one process, they are split across
+   * several invocations
+   * 
+   * @param path The absolute path of the file to execute
+   * @param args The arguments provided to the command
+   * @return An executable representing the command and arguments provided
+   */
+  private Executable fileExecutable(String path, String[] args) {
+    boolean parallel = this.option("argchunkparallel");
+    if ((parallel || this.option("argchunk")) && ChunkedExecutable.tooLong(path, args, environment)) {
+      return new ChunkedExecutable(path, args, this, parallel ? Runtime.getRuntime().availableProcessors() : 1);
     }
-    throw new ExecutionException("Command not found: " + cmd + Utilities.findBestMatch(cmd));
+    return new FileExecutable(path, args, this);
   }
 
   /**
@@ -121,6 +430,7 @@ public class Executor implements Closeable {
   public void cd(String dir) {
     prevCwd = cwd;
     cwd = dir;
+    frecency.visit(cwd);
   }
 
   /**
@@ -130,6 +440,149 @@ public class Executor implements Closeable {
     String temp = prevCwd;
     prevCwd = cwd;
     cwd = temp;
+    frecency.visit(cwd);
+  }
+
+  /**
+   * @return The completer for this execution, for the complete builtin and line
+   *         editors
+   */
+  public Completer completer() {
+    return completer;
+  }
+
+  /**
+   * @return The longest a command can run for in milliseconds, 0 for no limit
+   */
+  public long timeLimit() {
+    return timeLimit;
+  }
+
+  /**
+   * @param millis The longest a command can run for in milliseconds, 0 for no
+   *               limit
+   */
+  public void setTimeLimit(long millis) {
+    timeLimit = millis;
+  }
+
+  /**
+   * @return The most bytes a command can write to the terminal, 0 for no limit
+   */
+  public long outputLimit() {
+    return outputLimit;
+  }
+
+  /**
+   * @param bytes The most bytes a command can write to the terminal, 0 for no
+   *              limit
+   */
+  public void setOutputLimit(long bytes) {
+    outputLimit = bytes;
+  }
+
+  /**
+   * @return The environment variables of this session. This never changes, set
+   *         and unset replace it instead
+   */
+  public Environment environment() {
+    return environment;
+  }
+
+  /**
+   * Set an environment variable for this session
+   * 
+   * @param name  The name of the variable
+   * @param value The value of the variable
+   */
+  public synchronized void export(String name, String value) {
+    environment = environment.with(name, value);
+  }
+
+  /**
+   * Unset an environment variable for this session
+   * 
+   * @param name The name of the variable
+   */
+  public synchronized void unset(String name) {
+    environment = environment.without(name);
+  }
+
+  /**
+   * @return The directories visited with cd, for the z builtin
+   */
+  public Frecency frecency() {
+    return frecency;
+  }
+
+  /**
+   * @return The jobs started in the background, for the jobs builtin
+   */
+  public JobMonitor jobs() {
+    return jobs;
+  }
+
+  /**
+   * @return How long parsing the command being resolved took, or 0 if it wasn't
+   *         parsed or nothing is being resolved
+   */
+  public long parseNanos() {
+    return parseNanos;
+  }
+
+  /**
+   * @return The timer of the command being timed, or null if none is
+   */
+  public CommandTimer timer() {
+    return timer;
+  }
+
+  /**
+   * @param timer The timer of the command about to be timed, or null once it
+   *              has finished
+   */
+  public void setTimer(CommandTimer timer) {
+    this.timer = timer;
+  }
+
+  /**
+   * @return True if the shell reads its commands from standard input ahead of
+   *         running them, so commands can't read it themselves
+   */
+  public boolean commandsOnStdin() {
+    return commandsOnStdin;
+  }
+
+  /**
+   * @param commandsOnStdin True if the shell reads its commands from standard
+   *                        input ahead of running them
+   */
+  public void setCommandsOnStdin(boolean commandsOnStdin) {
+    this.commandsOnStdin = commandsOnStdin;
+  }
+
+  /**
+   * Check if an option is turned on
+   * 
+   * @param name The name of the option, a member of ALL_OPTIONS
+   * @return True if the option is on
+   */
+  public boolean option(String name) {
+    return options.contains(name);
+  }
+
+  /**
+   * Turn an option on or off
+   * 
+   * @param name    The name of the option, a member of ALL_OPTIONS
+   * @param enabled True to turn the option on, false to turn it off
+   */
+  public void setOption(String name, boolean enabled) {
+    if (enabled) {
+      options.add(name);
+    } else {
+      options.remove(name);
+    }
   }
 
   /**
@@ -149,11 +602,24 @@ public class Executor implements Closeable {
     if (historyWriter == null) {
       return;
     }
+    long start = System.nanoTime();
+    ShellEvents.HistoryWrite event = ShellEvents.enabled ? new ShellEvents.HistoryWrite() : null;
+    if (event != null) {
+      event.begin();
+    }
     try {
       historyWriter.write(cmd + "\n");
     } catch (IOException ex) {
       // Failed to write some history: Just ignore it
     }
+    Metrics.HISTORY_WRITE.recordSince(start);
+    if (event != null) {
+      event.end();
+      if (event.shouldCommit()) {
+        event.characters = cmd.length() + 1;
+        event.commit();
+      }
+    }
   }
 
   /**
@@ -167,20 +633,47 @@ public class Executor implements Closeable {
     if (historyFile == null || historyWriter == null) {
       return null;
     }
+    long start = System.nanoTime();
+    ShellEvents.HistoryWrite event = ShellEvents.enabled ? new ShellEvents.HistoryWrite() : null;
+    if (event != null) {
+      event.begin();
+    }
     try {
       historyWriter.flush();
     } catch (IOException ex) {
       return null;
+    } finally {
+      Metrics.HISTORY_WRITE.recordSince(start);
+      if (event != null) {
+        event.end();
+        if (event.shouldCommit()) {
+          event.flush = true;
+          event.commit();
+        }
+      }
     }
     return historyFile;
   }
 
   @Override
   public void close() throws IOException {
+    frecency.close();
     historyWriter.flush();
     historyWriter.close();
   }
 
+  /**
+   * Where commands have been found on one PATH
+   */
+  private static class PathCache {
+    String path; // The PATH the commands were found on
+    ConcurrentHashMap<String, String> commands = new ConcurrentHashMap<>(); // The absolute path of each command
+
+    PathCache(String path) {
+      this.path = path;
+    }
+  }
+
   /**
    * Represents an issue encountered while attempting to execute a command
    */
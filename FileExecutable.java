@@ -1,10 +1,18 @@
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
 import java.util.Optional;
 
 public class FileExecutable implements Executable {
   private ProcessBuilder builder; // Used to build the process
   private Process process; // The process that this executable started
+  private OutputStream outputStream; // A stream to copy the process output into, null if it goes to a file or the terminal
+  private Thread outputPump; // The thread copying the process output into outputStream
+  private byte[] inputData; // Data to write to the input of the process, null if it comes from a file or the terminal
+  private CommandTimer timer; // Records how long starting the process takes, null unless it is part of a timed command
+  private Tracer tracer; // Records when the process started and finished, null unless tracing
 
   /**
    * Create a file executable
@@ -17,17 +25,89 @@ public class FileExecutable implements Executable {
     System.arraycopy(args, 0, command, 1, args.length);
     builder = new ProcessBuilder(command);
     builder.directory(new File(executor.pwd()));
+    executor.environment().applyTo(builder);
     builder.redirectErrorStream(true);
     builder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
     builder.redirectInput(ProcessBuilder.Redirect.INHERIT);
+    CommandTimer timing = executor.timer();
+    if (timing != null && timing.isTiming()) {
+      timer = timing;
+    }
+    tracer = Tracer.current();
+    if (tracer != null) {
+      tracer.add(this, BuiltinExecutable.joinCommand(command), false, false);
+    }
   }
 
   @Override
   public void start() throws Executor.ExecutionException {
+    if (outputStream == null && builder.redirectOutput() == ProcessBuilder.Redirect.INHERIT) {
+      // Anything the shell has output so far has to come before the process output
+      ConsoleSink.OUT.flush();
+    }
+    long spawnStart = System.nanoTime();
+    ShellEvents.Spawn event = ShellEvents.enabled ? new ShellEvents.Spawn() : null;
+    if (event != null) {
+      event.begin();
+    }
     try {
       process = builder.start();
     } catch (IOException ex) {
       throw new Executor.ExecutionException(ex);
+    } finally {
+      if (event != null) {
+        event.end();
+        if (event.shouldCommit()) {
+          String[] command = builder.command().toArray(new String[0]);
+          event.command = ShellEvents.truncate(BuiltinExecutable.joinCommand(command));
+          event.pid = process == null ? 0 : process.pid();
+          event.commit();
+        }
+      }
+    }
+    long spawnEnd = System.nanoTime();
+    Metrics.SPAWN.record(spawnEnd - spawnStart);
+    if (tracer != null) {
+      tracer.started(this, spawnStart, process.pid());
+      process.onExit().thenAccept(exited -> tracer.finished(this, Optional.of(exited.exitValue())));
+    }
+    if (timer != null) {
+      timer.spawned(this, BuiltinExecutable.joinCommand(builder.command().toArray(new String[0])), spawnStart,
+          spawnEnd, process);
+    }
+    if (inputData != null) {
+      Thread inputFeeder = new Thread(this::feedInput);
+      inputFeeder.setDaemon(true);
+      inputFeeder.start();
+    }
+    if (outputStream != null) {
+      outputPump = new Thread(this::pumpOutput);
+      outputPump.setDaemon(true);
+      outputPump.start();
+    }
+  }
+
+  /**
+   * Write inputData to the input of the process, then close it so the process
+   * sees the end of its input
+   */
+  private void feedInput() {
+    try (OutputStream in = process.getOutputStream()) {
+      in.write(inputData);
+    } catch (IOException ex) {
+      // The process exited without reading all of its input, which is fine
+    }
+  }
+
+  /**
+   * Copy the output of the process into outputStream until the process closes
+   * it, then close outputStream
+   */
+  private void pumpOutput() {
+    try (InputStream in = process.getInputStream(); OutputStream out = outputStream) {
+      in.transferTo(out);
+    } catch (IOException ex) {
+      // The output target went away, nothing more we can do with the output
     }
   }
 
@@ -41,21 +121,71 @@ public class FileExecutable implements Executable {
 
   @Override
   public void waitFor() throws InterruptedException {
+    if (process == null) {
+      // Never started, for example because an earlier command in the group failed
+      return;
+    }
     process.waitFor();
+    if (timer != null) {
+      timer.exited(this, System.nanoTime());
+    }
+    if (tracer != null) {
+      tracer.finished(this, this.exitValue());
+    }
+    if (outputPump != null) {
+      outputPump.join();
+    }
+  }
+
+  @Override
+  public void destroy() {
+    if (process == null) {
+      return;
+    }
+    process.descendants().forEach(ProcessHandle::destroyForcibly);
+    process.destroyForcibly();
   }
 
   @Override
   public void redirectOutput(String file, boolean append) {
+    outputStream = null;
     builder.redirectOutput(
         append ? ProcessBuilder.Redirect.appendTo(new File(file)) : ProcessBuilder.Redirect.to(new File(file)));
 
   }
 
+  @Override
+  public void redirectOutput(OutputStream stream) {
+    outputStream = stream;
+    builder.redirectOutput(ProcessBuilder.Redirect.PIPE);
+  }
+
   @Override
   public void redirectInput(String file) {
+    inputData = null;
     builder.redirectInput(new File(file));
   }
 
+  @Override
+  public void redirectInput(byte[] data) {
+    inputData = data;
+    builder.redirectInput(ProcessBuilder.Redirect.PIPE);
+  }
+
+  /**
+   * @return The path of the file this executes
+   */
+  public String path() {
+    return builder.command().get(0);
+  }
+
+  @Override
+  public void processes(List<ProcessHandle> processes) {
+    if (process != null) {
+      processes.add(process.toHandle());
+    }
+  }
+
   @Override
   public String threadInfo() {
     return builder.command().toString();
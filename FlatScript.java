@@ -0,0 +1,292 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+
+/**
+ * A compact, immutable form of many parsed commands, used to hold on to a
+ * whole parsed script. Rather than a tree of objects per command, every node of
+ * every command is stored across a few shared arrays: each node has a kind, a
+ * range in the refs array (its arguments or its members), and its redirects,
+ * and every string is stored once in a shared string table. A command's tree
+ * is only rebuilt from these arrays when it is about to run, so it resolves
+ * through the same ProcessNode.execute as a line parsed on its own.
+ */
+public class FlatScript {
+  static final byte COMMAND = 0; // A command, its refs are its words
+  static final byte PARALLEL = 1; // A group built using '&', its refs are its members
+  static final byte SEQUENTIAL = 2; // A group built using '&&', its refs are its members
+  static final byte PIPE = 3; // A group built using '|', its refs are its members
+
+  static final byte APPEND = 1; // Flag: append output to the output file rather than overwrite it
+  static final byte INPUT_DATA = 2; // Flag: the input is an index into data rather than strings
+
+  private byte[] kinds; // The kind of each node
+  private int[] refStart; // Where the refs of each node start, with one extra entry marking the end
+  private int[] refs; // Words of commands, as indices into strings (or -1 - node for substitutions), and members of groups
+  private BitSet globs; // Which refs are words to expand as glob patterns
+  private int[] inputs; // The input of each node, as an index into strings or data, or -1 for none
+  private int[] outputs; // The output file of each node, as an index into strings, or -1 for none
+  private byte[] flags; // The flags of each node
+  private String[] strings; // Every distinct string in the script
+  private byte[][] data; // The input data of here-documents and here-strings
+  private int[] roots; // The root node of each top-level command
+  private int[] lines; // The line number of each top-level command
+  private boolean[] background; // Whether each top-level command runs in the background
+
+  /**
+   * @return The number of top-level commands in the script
+   */
+  public int size() {
+    return roots.length;
+  }
+
+  /**
+   * Rebuild the tree of a top-level command, ready to execute
+   *
+   * @param command The index of a top-level command
+   * @return The root node of the command
+   */
+  public ProcessNode command(int command) {
+    ProcessNode root = this.node(roots[command]);
+    root.setBackground(background[command]);
+    return root;
+  }
+
+  /**
+   * @param command The index of a top-level command
+   * @return The line number the command starts on
+   */
+  public int line(int command) {
+    return lines[command];
+  }
+
+  /**
+   * Rebuild the tree of a node, so it resolves the same way as a command parsed
+   * on its own. Only the tree of the command about to run is built, the rest of
+   * the script stays flat
+   *
+   * @param node The index of the node
+   * @return The node, and everything below it, as a tree
+   */
+  public ProcessNode node(int node) {
+    ProcessNode tree;
+    int start = refStart[node];
+    int end = refStart[node + 1];
+    if (kinds[node] == COMMAND) {
+      String[] words = new String[end - start];
+      ProcessNode[] substitutions = null;
+      boolean[] globArr = null;
+      for (int i = start; i < end; i++) {
+        if (refs[i] < 0) {
+          if (substitutions == null) {
+            substitutions = new ProcessNode[words.length];
+          }
+          substitutions[i - start] = this.node(-1 - refs[i]);
+          continue;
+        }
+        words[i - start] = strings[refs[i]];
+        if (globs.get(i)) {
+          if (globArr == null) {
+            globArr = new boolean[words.length];
+          }
+          globArr[i - start] = true;
+        }
+      }
+      tree = new ShellProcess(words, substitutions, globArr);
+    } else {
+      ProcessNode[] members = new ProcessNode[end - start];
+      for (int i = start; i < end; i++) {
+        members[i - start] = this.node(refs[i]);
+      }
+      tree = new ProcessGroup(members, kinds[node] == PARALLEL ? ProcessGroup.Type.Parallel
+          : kinds[node] == SEQUENTIAL ? ProcessGroup.Type.Sequential : ProcessGroup.Type.Pipe);
+    }
+    if (inputs[node] >= 0) {
+      if ((flags[node] & INPUT_DATA) != 0) {
+        tree.setInputData(data[inputs[node]]);
+      } else {
+        tree.setInput(strings[inputs[node]]);
+      }
+    }
+    if (outputs[node] >= 0) {
+      tree.setOutput(strings[outputs[node]], (flags[node] & APPEND) != 0);
+    }
+    return tree;
+  }
+
+  /**
+   * Builds a flat script from parsed ProcessNode trees. Nodes are added by the
+   * trees themselves through ProcessNode.flatten, children before parents.
+   */
+  public static class Builder {
+    private byte[] kinds = new byte[64];
+    private int[] refStart = new int[65];
+    private int[] refs = new int[256];
+    private BitSet globs = new BitSet();
+    private int[] inputs = new int[64];
+    private int[] outputs = new int[64];
+    private byte[] flags = new byte[64];
+    private int nodeCount; // How many nodes have been added
+    private int refCount; // How many refs have been added
+    private HashMap<String, Integer> stringIndices = new HashMap<>(); // The index of each string in strings
+    private ArrayList<String> strings = new ArrayList<>();
+    private ArrayList<byte[]> data = new ArrayList<>();
+    private int[] roots = new int[16];
+    private int[] lines = new int[16];
+    private boolean[] background = new boolean[16];
+    private int commandCount; // How many top-level commands have been added
+
+    /**
+     * Add a top-level command
+     *
+     * @param line The line number the command starts on
+     * @param root The parsed command
+     */
+    public void add(int line, ProcessNode root) {
+      int node = root.flatten(this);
+      if (commandCount == roots.length) {
+        roots = Arrays.copyOf(roots, commandCount * 2);
+        lines = Arrays.copyOf(lines, commandCount * 2);
+        background = Arrays.copyOf(background, commandCount * 2);
+      }
+      roots[commandCount] = node;
+      lines[commandCount] = line;
+      background[commandCount] = root.background;
+      commandCount++;
+    }
+
+    /**
+     * Add a command node
+     *
+     * @param words         The words of the command, including the command itself
+     * @param substitutions The node to substitute for each word, or -1 for words
+     *                      that are used as is
+     * @param globs         Whether each word is a glob pattern, or null if none
+     *                      are
+     * @return The index of the node
+     */
+    int addCommand(String[] words, int[] substitutions, boolean[] globs) {
+      int node = this.addNode(COMMAND);
+      for (int i = 0; i < words.length; i++) {
+        if (globs != null && globs[i]) {
+          this.globs.set(refCount);
+        }
+        this.addRef(substitutions != null && substitutions[i] >= 0 ? -1 - substitutions[i] : this.string(words[i]));
+      }
+      refStart[node + 1] = refCount;
+      return node;
+    }
+
+    /**
+     * Add a group node
+     *
+     * @param type    The type of the group
+     * @param members The indices of the group's members
+     * @return The index of the node
+     */
+    int addGroup(ProcessGroup.Type type, int[] members) {
+      int node = this.addNode(type == ProcessGroup.Type.Parallel ? PARALLEL
+          : type == ProcessGroup.Type.Sequential ? SEQUENTIAL : PIPE);
+      for (int i = 0; i < members.length; i++) {
+        this.addRef(members[i]);
+      }
+      refStart[node + 1] = refCount;
+      return node;
+    }
+
+    /**
+     * Set the redirects of a node
+     *
+     * @param node         The index of the node
+     * @param inputFile    The file to take input from, or null
+     * @param inputData    The input data, or null
+     * @param outputFile   The file to output to, or null
+     * @param appendOutput True to append to the output file
+     */
+    void setRedirects(int node, String inputFile, byte[] inputData, String outputFile, boolean appendOutput) {
+      if (inputFile != null) {
+        inputs[node] = this.string(inputFile);
+      } else if (inputData != null) {
+        inputs[node] = data.size();
+        data.add(inputData);
+        flags[node] |= INPUT_DATA;
+      }
+      if (outputFile != null) {
+        outputs[node] = this.string(outputFile);
+        if (appendOutput) {
+          flags[node] |= APPEND;
+        }
+      }
+    }
+
+    /**
+     * Add a node with no redirects
+     *
+     * @param kind The kind of node
+     * @return The index of the node
+     */
+    private int addNode(byte kind) {
+      if (nodeCount == kinds.length) {
+        kinds = Arrays.copyOf(kinds, nodeCount * 2);
+        refStart = Arrays.copyOf(refStart, nodeCount * 2 + 1);
+        inputs = Arrays.copyOf(inputs, nodeCount * 2);
+        outputs = Arrays.copyOf(outputs, nodeCount * 2);
+        flags = Arrays.copyOf(flags, nodeCount * 2);
+      }
+      kinds[nodeCount] = kind;
+      refStart[nodeCount] = refCount;
+      inputs[nodeCount] = -1;
+      outputs[nodeCount] = -1;
+      return nodeCount++;
+    }
+
+    /**
+     * Add a ref to the node being added
+     *
+     * @param ref The ref to add
+     */
+    private void addRef(int ref) {
+      if (refCount == refs.length) {
+        refs = Arrays.copyOf(refs, refCount * 2);
+      }
+      refs[refCount++] = ref;
+    }
+
+    /**
+     * Get the index of a string in the string table, adding it if it isn't there
+     *
+     * @param str The string
+     * @return The index of the string
+     */
+    private int string(String str) {
+      Integer index = stringIndices.get(str);
+      if (index == null) {
+        index = strings.size();
+        strings.add(str);
+        stringIndices.put(str, index);
+      }
+      return index;
+    }
+
+    /**
+     * @return The finished script, with every array trimmed to size
+     */
+    public FlatScript build() {
+      FlatScript script = new FlatScript();
+      script.kinds = Arrays.copyOf(kinds, nodeCount);
+      script.refStart = Arrays.copyOf(refStart, nodeCount + 1);
+      script.refs = Arrays.copyOf(refs, refCount);
+      script.globs = (BitSet) globs.clone();
+      script.inputs = Arrays.copyOf(inputs, nodeCount);
+      script.outputs = Arrays.copyOf(outputs, nodeCount);
+      script.flags = Arrays.copyOf(flags, nodeCount);
+      script.strings = strings.toArray(new String[0]);
+      script.data = data.toArray(new byte[0][]);
+      script.roots = Arrays.copyOf(roots, commandCount);
+      script.lines = Arrays.copyOf(lines, commandCount);
+      script.background = Arrays.copyOf(background, commandCount);
+      return script;
+    }
+  }
+}
@@ -0,0 +1,299 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Remembers which directories are visited, how often, and how recently, so the
+ * z builtin can jump to the best match for a few fragments of a path. The
+ * directories are kept in memory and saved to a small binary file in the home
+ * directory. Visits are recorded on a background thread, which also loads and
+ * saves the file, so cd never waits for the disk.
+ *
+ * Ranking works like the z script: each visit adds one to a directory's rank,
+ * every rank is scaled down once the total grows too large so old favourites
+ * fade, and the rank is weighted by how recently the directory was visited.
+ */
+public class Frecency {
+  /**
+   * Once the ranks of all directories add up to more than this, they are all
+   * scaled down and the lowest are forgotten
+   */
+  static final double MAX_TOTAL_RANK = 9000;
+
+  private static final int MAGIC = 0x4a534846; // Marks a frecency file, "JSHF"
+  private static final int VERSION = 1; // The version of the file format
+  private static final long HOUR = 60 * 60 * 1000L;
+
+  private File file; // The file the directories are saved in
+  private HashMap<String, Entry> entries = new HashMap<>(); // Every remembered directory, by path
+  private ArrayList<Entry> index = new ArrayList<>(); // Every remembered directory, in an array for fast searching
+  private double totalRank; // The ranks of all directories added up
+  private boolean loaded; // True once the file has been read
+  private ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "frecency");
+    thread.setDaemon(true);
+    return thread;
+  }); // Records visits and saves the file, one job at a time
+  private AtomicBoolean savePending = new AtomicBoolean(); // True while a save is waiting to run
+
+  /**
+   * Create a frecency database, which is read from the file the first time it is
+   * used
+   *
+   * @param file The file to keep the directories in
+   */
+  public Frecency(File file) {
+    this.file = file;
+  }
+
+  /**
+   * Record a visit to a directory. This returns straight away, the visit is
+   * recorded and saved in the background
+   *
+   * @param dir The absolute path of the directory
+   */
+  public void visit(String dir) {
+    long now = System.currentTimeMillis();
+    writer.execute(() -> {
+      this.record(dir, now);
+      if (savePending.compareAndSet(false, true)) {
+        try {
+          // Visits queued before the save runs are saved along with this one
+          writer.execute(this::save);
+        } catch (RejectedExecutionException ex) {
+          // The shell is exiting, so save now
+          this.save();
+        }
+      }
+    });
+  }
+
+  /**
+   * Add a visit to the in-memory directories
+   *
+   * @param dir  The absolute path of the directory
+   * @param time When it was visited
+   */
+  private synchronized void record(String dir, long time) {
+    this.load();
+    Entry entry = entries.get(dir);
+    if (entry == null) {
+      entry = new Entry(dir);
+      entries.put(dir, entry);
+      index.add(entry);
+    }
+    entry.rank++;
+    entry.lastVisit = time;
+    totalRank++;
+    if (totalRank > MAX_TOTAL_RANK) {
+      totalRank = 0;
+      Iterator<Entry> iter = index.iterator();
+      while (iter.hasNext()) {
+        Entry aged = iter.next();
+        aged.rank *= 0.99;
+        if (aged.rank < 1) {
+          iter.remove();
+          entries.remove(aged.path);
+        } else {
+          totalRank += aged.rank;
+        }
+      }
+    }
+  }
+
+  /**
+   * Find the directories matching every fragment, in the order they are given,
+   * best first. If none match exactly, fragments are matched ignoring case.
+   * Directories which no longer exist are skipped, but only the matches are
+   * checked, not every remembered directory
+   *
+   * @param fragments Parts of the path, in order
+   * @return The matching directories, best first
+   */
+  public List<Entry> find(String[] fragments) {
+    try {
+      // Searching on the background thread means every visit made so far has
+      // been recorded first
+      return writer.submit(() -> this.search(fragments)).get();
+    } catch (ExecutionException | RejectedExecutionException ex) {
+      return this.search(fragments);
+    } catch (InterruptedException ex) {
+      return new ArrayList<>();
+    }
+  }
+
+  /**
+   * Find the directories matching every fragment, best first
+   *
+   * @param fragments Parts of the path, in order
+   * @return The matching directories, best first
+   */
+  private synchronized List<Entry> search(String[] fragments) {
+    this.load();
+    long now = System.currentTimeMillis();
+    ArrayList<Entry> matches = this.match(fragments, false, now);
+    if (matches.isEmpty()) {
+      matches = this.match(fragments, true, now);
+    }
+    matches.sort((a, b) -> Double.compare(b.score, a.score));
+    matches.removeIf(entry -> !new File(entry.path).isDirectory());
+    return matches;
+  }
+
+  /**
+   * Find the directories matching every fragment, and score them
+   *
+   * @param fragments  Parts of the path, in order
+   * @param ignoreCase True to ignore case when matching
+   * @param now        The current time, for weighting by how recent visits were
+   * @return The matching directories, unsorted
+   */
+  private ArrayList<Entry> match(String[] fragments, boolean ignoreCase, long now) {
+    String[] needles = fragments.clone();
+    for (int i = 0; ignoreCase && i < needles.length; i++) {
+      needles[i] = needles[i].toLowerCase(Locale.ROOT);
+    }
+    ArrayList<Entry> matches = new ArrayList<>();
+    for (int i = 0; i < index.size(); i++) {
+      Entry entry = index.get(i);
+      String path = ignoreCase ? entry.lowerPath : entry.path;
+      int from = 0;
+      boolean matched = true;
+      for (String needle : needles) {
+        int found = path.indexOf(needle, from);
+        if (found < 0) {
+          matched = false;
+          break;
+        }
+        from = found + needle.length();
+      }
+      if (matched) {
+        entry.score = entry.score(now);
+        matches.add(entry);
+      }
+    }
+    return matches;
+  }
+
+  /**
+   * Read the file, the first time this is called. A missing or damaged file
+   * just means starting with nothing remembered
+   */
+  private synchronized void load() {
+    if (loaded) {
+      return;
+    }
+    loaded = true;
+    if (!file.exists()) {
+      return;
+    }
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        return;
+      }
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        Entry entry = new Entry(in.readUTF());
+        entry.rank = in.readDouble();
+        entry.lastVisit = in.readLong();
+        entries.put(entry.path, entry);
+        index.add(entry);
+        totalRank += entry.rank;
+      }
+    } catch (IOException ex) {
+      // Keep whatever was read before the damage
+    }
+  }
+
+  /**
+   * Write every directory to the file, replacing it all at once so a crash
+   * can't leave it half written
+   */
+  private void save() {
+    savePending.set(false);
+    File temp = new File(file.getPath() + ".tmp");
+    try {
+      synchronized (this) {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+          out.writeInt(MAGIC);
+          out.writeInt(VERSION);
+          out.writeInt(index.size());
+          for (Entry entry : index) {
+            out.writeUTF(entry.path);
+            out.writeDouble(entry.rank);
+            out.writeLong(entry.lastVisit);
+          }
+        }
+      }
+      Files.move(temp.toPath(), Paths.get(file.getPath()), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException ex) {
+      // Try again on the next visit
+      temp.delete();
+    }
+  }
+
+  /**
+   * Finish recording and saving any visits still waiting, so they aren't lost
+   * when the shell exits
+   */
+  public void close() {
+    writer.shutdown();
+    try {
+      writer.awaitTermination(1, TimeUnit.SECONDS);
+    } catch (InterruptedException ex) {
+      // Exiting anyway
+    }
+  }
+
+  /**
+   * A remembered directory
+   */
+  public static class Entry {
+    String path; // The absolute path of the directory
+    String lowerPath; // The path in lower case, for matching ignoring case
+    double rank; // How often it has been visited, faded over time
+    long lastVisit; // When it was last visited
+    double score; // The score from the last search
+
+    Entry(String path) {
+      this.path = path;
+      this.lowerPath = path.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @param now The current time
+     * @return The rank, weighted by how recently the directory was visited
+     */
+    double score(long now) {
+      long age = now - lastVisit;
+      if (age < HOUR) {
+        return rank * 4;
+      } else if (age < 24 * HOUR) {
+        return rank * 2;
+      } else if (age < 7 * 24 * HOUR) {
+        return rank / 2;
+      }
+      return rank / 4;
+    }
+  }
+}
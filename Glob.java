@@ -0,0 +1,298 @@
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RecursiveTask;
+import java.util.regex.Pattern;
+
+/**
+ * Expands glob patterns in arguments into the paths they match. '*' matches any
+ * run of characters within a name, '?' matches a single character, '[...]'
+ * matches one of a set of characters, and '**' as a whole path segment matches
+ * any number of directories. Names starting with '.' are only matched by
+ * patterns that start with '.' too.
+ *
+ * Each segment is compiled once and kept, and directory listings are cached
+ * until the directory's modification time changes, so repeatedly globbing the
+ * same trees mostly costs one stat per directory. The directories under a '**'
+ * are walked in parallel.
+ */
+public class Glob {
+  /**
+   * The most directory listings kept before the cache is emptied
+   */
+  static final int LISTING_CACHE_SIZE = 4096;
+
+  private static final ConcurrentHashMap<String, Pattern> patterns = new ConcurrentHashMap<>(); // Each compiled segment
+  private static final ConcurrentHashMap<Path, Listing> listings = new ConcurrentHashMap<>(); // Each cached directory listing
+
+  /**
+   * Check if a word contains any glob characters, and so needs expanding
+   *
+   * @param word The word
+   * @return True if the word is a glob pattern
+   */
+  public static boolean isPattern(String word) {
+    return word.indexOf('*') >= 0 || word.indexOf('?') >= 0 || word.indexOf('[') >= 0;
+  }
+
+  /**
+   * Find the paths matching a pattern. They are written the way the pattern is,
+   * so relative patterns give relative paths
+   *
+   * @param pattern The pattern to expand
+   * @param cwd     The directory relative patterns start in
+   * @return The matching paths in sorted order, which is empty if nothing matched
+   */
+  public static List<String> expand(String pattern, String cwd) {
+    String[] segments = pattern.split("/", -1);
+    ArrayList<String> matches = new ArrayList<>();
+    if (pattern.startsWith("/")) {
+      match(Paths.get("/"), "/", segments, 1, matches);
+    } else {
+      match(Paths.get(cwd), "", segments, 0, matches);
+    }
+    Collections.sort(matches);
+    return matches;
+  }
+
+  /**
+   * Find the paths below a directory matching the rest of a pattern
+   *
+   * @param dir      The directory
+   * @param typed    The directory as it is written in the pattern
+   * @param segments The segments of the pattern
+   * @param index    The first segment to match inside dir
+   * @param matches  The list to add matching paths to
+   */
+  private static void match(Path dir, String typed, String[] segments, int index, List<String> matches) {
+    String segment = segments[index];
+    boolean last = index == segments.length - 1;
+    if (segment.isEmpty()) {
+      // Either a trailing '/', which only matches directories, or a doubled one
+      if (last) {
+        matches.add(typed.endsWith("/") ? typed : typed + "/");
+      } else {
+        match(dir, typed, segments, index + 1, matches);
+      }
+      return;
+    }
+    if (segment.equals("**")) {
+      List<Path> dirs = new WalkTask(dir).invoke();
+      for (Path subdir : dirs) {
+        String subTyped = join(typed, dir.relativize(subdir).toString());
+        if (last) {
+          // A trailing '**' matches everything below dir
+          Listing listing = listing(subdir);
+          for (int i = 0; listing != null && i < listing.names.length; i++) {
+            if (!listing.names[i].startsWith(".")) {
+              matches.add(join(subTyped, listing.names[i]));
+            }
+          }
+        } else {
+          match(subdir, subTyped, segments, index + 1, matches);
+        }
+      }
+      return;
+    }
+    if (!isPattern(segment)) {
+      Path child = dir.resolve(segment);
+      if (last ? Files.exists(child, LinkOption.NOFOLLOW_LINKS) : Files.isDirectory(child)) {
+        if (last) {
+          matches.add(join(typed, segment));
+        } else {
+          match(child, join(typed, segment), segments, index + 1, matches);
+        }
+      }
+      return;
+    }
+    Pattern compiled = patterns.computeIfAbsent(segment, Glob::compile);
+    boolean matchHidden = segment.startsWith(".");
+    Listing listing = listing(dir);
+    for (int i = 0; listing != null && i < listing.names.length; i++) {
+      String name = listing.names[i];
+      if ((!matchHidden && name.startsWith(".")) || !compiled.matcher(name).matches()) {
+        continue;
+      }
+      if (last) {
+        matches.add(join(typed, name));
+      } else if (listing.types[i] != Listing.FILE) {
+        match(dir.resolve(name), join(typed, name), segments, index + 1, matches);
+      }
+    }
+  }
+
+  /**
+   * @param typed A directory as it is written in the pattern
+   * @param name  A name inside the directory
+   * @return The path of the name as it is written in the pattern
+   */
+  private static String join(String typed, String name) {
+    if (name.isEmpty()) {
+      return typed;
+    } else if (typed.isEmpty()) {
+      return name;
+    } else if (typed.endsWith("/")) {
+      return typed + name;
+    }
+    return typed + "/" + name;
+  }
+
+  /**
+   * Turn one segment of a glob pattern into a regular expression
+   *
+   * @param segment The segment, which has no '/' in it
+   * @return The compiled regular expression
+   */
+  private static Pattern compile(String segment) {
+    StringBuilder regex = new StringBuilder();
+    for (int i = 0; i < segment.length(); i++) {
+      char c = segment.charAt(i);
+      if (c == '*') {
+        regex.append(".*");
+      } else if (c == '?') {
+        regex.append('.');
+      } else if (c == '[' && setEnd(segment, i) > 0) {
+        int end = setEnd(segment, i);
+        regex.append('[');
+        int start = i + 1;
+        if (segment.charAt(start) == '!' || segment.charAt(start) == '^') {
+          regex.append('^');
+          start++;
+        }
+        for (int j = start; j < end; j++) {
+          char setChar = segment.charAt(j);
+          if (setChar == '\\' || setChar == '[' || setChar == ']' || setChar == '&' || setChar == '^') {
+            regex.append('\\');
+          }
+          regex.append(setChar);
+        }
+        regex.append(']');
+        i = end;
+      } else if (Character.isLetterOrDigit(c)) {
+        regex.append(c);
+      } else {
+        regex.append('\\').append(c);
+      }
+    }
+    return Pattern.compile(regex.toString(), Pattern.DOTALL);
+  }
+
+  /**
+   * Find the end of a '[...]' set in a pattern
+   *
+   * @param segment The segment of the pattern
+   * @param open    The index of the '['
+   * @return The index of the ']', or -1 if the set isn't closed and the '[' is
+   *         just a character
+   */
+  private static int setEnd(String segment, int open) {
+    int start = open + 1;
+    if (start < segment.length() && (segment.charAt(start) == '!' || segment.charAt(start) == '^')) {
+      start++;
+    }
+    // A ']' straight after the '[' is part of the set rather than its end
+    return segment.indexOf(']', start + 1);
+  }
+
+  /**
+   * Get the listing of a directory, from the cache if the directory hasn't been
+   * modified since it was listed
+   *
+   * @param dir The directory
+   * @return The listing, or null if the directory can't be read
+   */
+  private static Listing listing(Path dir) {
+    try {
+      // Read the time first, so changes made while listing show up next time
+      FileTime modified = Files.getLastModifiedTime(dir);
+      Listing cached = listings.get(dir);
+      if (cached != null && cached.modified.equals(modified)) {
+        return cached;
+      }
+      ArrayList<String> names = new ArrayList<>();
+      ArrayList<Byte> types = new ArrayList<>();
+      try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+        for (Path entry : stream) {
+          names.add(entry.getFileName().toString());
+          types.add(Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS) ? Listing.DIRECTORY
+              : Files.isDirectory(entry) ? Listing.LINKED_DIRECTORY : Listing.FILE);
+        }
+      }
+      Listing listing = new Listing(modified, names.toArray(new String[0]), new byte[types.size()]);
+      for (int i = 0; i < listing.types.length; i++) {
+        listing.types[i] = types.get(i);
+      }
+      if (listings.size() >= LISTING_CACHE_SIZE) {
+        listings.clear();
+      }
+      listings.put(dir, listing);
+      return listing;
+    } catch (IOException ex) {
+      return null;
+    }
+  }
+
+  /**
+   * The names in a directory, and what kind of file each one is
+   */
+  private static class Listing {
+    static final byte FILE = 0; // Anything other than a directory
+    static final byte DIRECTORY = 1; // A directory
+    static final byte LINKED_DIRECTORY = 2; // A symbolic link to a directory, which '**' doesn't follow
+
+    FileTime modified; // The modification time of the directory when it was listed
+    String[] names; // The name of each entry
+    byte[] types; // The type of each entry
+
+    Listing(FileTime modified, String[] names, byte[] types) {
+      this.modified = modified;
+      this.names = names;
+      this.types = types;
+    }
+  }
+
+  /**
+   * Finds a directory and every directory below it, other than hidden ones,
+   * splitting off a task for each subdirectory so big trees are walked in
+   * parallel
+   */
+  private static class WalkTask extends RecursiveTask<List<Path>> {
+    private static final long serialVersionUID = 1L;
+
+    private Path dir; // The directory to walk
+
+    WalkTask(Path dir) {
+      this.dir = dir;
+    }
+
+    @Override
+    protected List<Path> compute() {
+      ArrayList<Path> dirs = new ArrayList<>();
+      dirs.add(dir);
+      Listing listing = listing(dir);
+      if (listing == null) {
+        return dirs;
+      }
+      ArrayList<WalkTask> subtasks = new ArrayList<>();
+      for (int i = 0; i < listing.names.length; i++) {
+        if (listing.types[i] == Listing.DIRECTORY && !listing.names[i].startsWith(".")) {
+          WalkTask subtask = new WalkTask(dir.resolve(listing.names[i]));
+          subtask.fork();
+          subtasks.add(subtask);
+        }
+      }
+      for (WalkTask subtask : subtasks) {
+        dirs.addAll(subtask.join());
+      }
+      return dirs;
+    }
+  }
+}
@@ -1,14 +1,34 @@
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
 import java.util.Optional;
 
 /**
  * Represents a group of executables, either in parallel or not
  */
 public class GroupExecutable implements Executable {
+  /**
+   * The most output of each member of a keep-order group held in memory before
+   * spilling into a temporary file
+   */
+  static final int KEEP_ORDER_MEMORY_LIMIT = 4 << 20;
+
   private Executable[] members; // The executables that make up this group
   private ProcessGroup.Type type; // The type of group
   private File[] tempFiles; // Temporary files to handle pipes
+  private String sharedOutputFile; // The file all members of a parallel group output to
+  private boolean appendSharedOutput; // True to append to sharedOutputFile, false to overwrite
+  private OutputStream sharedOutputStream; // The stream all members of a parallel group output to
+  private OutputStream lastOutputStream; // The stream the last member of a sequential group outputs to, null if none
+  private boolean keepOrder; // True to output the members of a parallel group in order, rather than as they run
+  private OutputBuffer[] buffers; // The output of each member of a keep-order group
+  private OutputStream orderedOutput; // Where a keep-order group's buffers are flushed to
+  private Thread collector; // The thread flushing a keep-order group's buffers
+  private volatile boolean destroyed; // True once destroy() has been called, so no more members are started
+  private ShellEvents.GroupStage[] stageEvents; // The flight recorder event of each running member, while recording
+  private Tracer tracer; // Records when the group started and finished, null unless tracing
 
   /**
    * Create a group executable
@@ -19,10 +39,70 @@ public class GroupExecutable implements Executable {
   public GroupExecutable(ProcessGroup.Type type, Executable[] members) {
     this.type = type;
     this.members = members;
+    stageEvents = new ShellEvents.GroupStage[members.length];
+    tracer = Tracer.current();
+    if (tracer != null) {
+      tracer.add(this, type.toString(), true, type == ProcessGroup.Type.Parallel);
+      tracer.adopt(this, members);
+    }
+  }
+
+  /**
+   * Start a member, beginning its flight recorder event if it is being recorded
+   * 
+   * @param index The index of the member
+   * @throws Executor.ExecutionException If the member fails to start
+   */
+  private void startMember(int index) throws Executor.ExecutionException {
+    if (!ShellEvents.enabled) {
+      members[index].start();
+      return;
+    }
+    ShellEvents.GroupStage event = new ShellEvents.GroupStage();
+    event.begin();
+    members[index].start();
+    synchronized (stageEvents) {
+      stageEvents[index] = event;
+    }
+  }
+
+  /**
+   * Commit the flight recorder event of a member which has finished, the first
+   * time this is called for it
+   * 
+   * @param index The index of the member
+   */
+  private void finishMember(int index) {
+    ShellEvents.GroupStage event;
+    synchronized (stageEvents) {
+      event = stageEvents[index];
+      stageEvents[index] = null;
+    }
+    if (event != null) {
+      event.end();
+      if (event.shouldCommit()) {
+        event.groupType = type.toString();
+        event.index = index;
+        event.member = ShellEvents.truncate(members[index].threadInfo());
+        event.exitCode = members[index].exitValue().orElse(-1);
+        event.commit();
+      }
+    }
+  }
+
+  /**
+   * Output the members of this parallel group in order, each one in full once it
+   * has finished, rather than letting their output interleave as they run
+   */
+  public void keepOrder() {
+    keepOrder = true;
   }
 
   @Override
   public void start() throws Executor.ExecutionException {
+    if (tracer != null) {
+      tracer.started(this, System.nanoTime(), 0);
+    }
     if (type == ProcessGroup.Type.Pipe) {
       // We handle pipes by creating temporary files between each executable and
       // directing the output of the previous process into the file and the input of
@@ -39,23 +119,160 @@ public class GroupExecutable implements Executable {
       }
     }
     if (type == ProcessGroup.Type.Parallel) {
+      OutputStream[] writers = keepOrder ? this.bufferOutput() : this.shareOutput();
       for (int i = 0; i < members.length; i++) {
-        members[i].start();
+        try {
+          this.startMember(i);
+        } catch (Executor.ExecutionException ex) {
+          if (keepOrder) {
+            // Nothing will be flushed, since not every member ran
+            this.releaseBuffers();
+            throw ex;
+          }
+          // The members that won't be started won't close their writers either
+          for (int j = i; writers != null && j < writers.length; j++) {
+            try {
+              writers[j].close();
+            } catch (IOException closeEx) {
+              // Just ignore it
+            }
+          }
+          throw ex;
+        }
+      }
+      if (keepOrder) {
+        collector = new Thread(this::flushInOrder);
+        collector.setDaemon(true);
+        collector.start();
       }
     } else {
-      members[0].start();
-      for (int i = 1; i < members.length; i++) {
+      int started = 0; // How many members have been started
+      try {
+        this.startMember(0);
+        started = 1;
+        for (int i = 1; i < members.length; i++) {
+          try {
+            members[i - 1].waitFor();
+          } catch (InterruptedException ex) {
+            // Skip this one
+          }
+          this.finishMember(i - 1);
+          if (destroyed || members[i - 1].exitValue().orElse(1) != 0) {
+            // Fail on the first failure
+            break;
+          }
+          if (tempFiles != null) {
+            Metrics.PIPE_BYTES.add(tempFiles[i - 1].length());
+          }
+          this.startMember(i);
+          started = i + 1;
+        }
+      } finally {
+        if (started < members.length && lastOutputStream != null) {
+          // The last member would have closed the stream once it finished, but it
+          // will never start, and a shared appender only closes its target once
+          // every writer has been closed
+          try {
+            lastOutputStream.close();
+          } catch (IOException ex) {
+            // Just ignore it
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * If this parallel group's output is redirected, give each member its own
+   * writer onto one shared appender, so the target is opened once and the
+   * members' lines don't get mixed together
+   * 
+   * @throws Executor.ExecutionException If the output file can't be opened
+   * @return The writer given to each member, or null if output isn't redirected
+   */
+  private OutputStream[] shareOutput() throws Executor.ExecutionException {
+    SharedAppender appender;
+    if (sharedOutputFile != null) {
+      try {
+        appender = new SharedAppender(sharedOutputFile, appendSharedOutput);
+      } catch (IOException ex) {
+        throw new Executor.ExecutionException(ex);
+      }
+    } else if (sharedOutputStream != null) {
+      appender = new SharedAppender(sharedOutputStream);
+    } else {
+      return null;
+    }
+    OutputStream[] writers = new OutputStream[members.length];
+    for (int i = 0; i < members.length; i++) {
+      writers[i] = appender.newWriter();
+      members[i].redirectOutput(writers[i]);
+    }
+    return writers;
+  }
+
+  /**
+   * Give each member of a keep-order group a buffer to output to, and open the
+   * target the buffers will be flushed to
+   * 
+   * @throws Executor.ExecutionException If the output file can't be opened
+   * @return The buffer given to each member
+   */
+  private OutputStream[] bufferOutput() throws Executor.ExecutionException {
+    if (sharedOutputFile != null) {
+      try {
+        orderedOutput = new FileOutputStream(sharedOutputFile, appendSharedOutput);
+      } catch (IOException ex) {
+        throw new Executor.ExecutionException(ex);
+      }
+    } else if (sharedOutputStream != null) {
+      orderedOutput = sharedOutputStream;
+    } else {
+      orderedOutput = ConsoleSink.OUT;
+    }
+    buffers = new OutputBuffer[members.length];
+    for (int i = 0; i < members.length; i++) {
+      buffers[i] = new OutputBuffer(KEEP_ORDER_MEMORY_LIMIT);
+      members[i].redirectOutput(buffers[i]);
+    }
+    return buffers;
+  }
+
+  /**
+   * Wait for each member of a keep-order group in turn, flushing its output as
+   * soon as it and every member before it have finished
+   */
+  private void flushInOrder() {
+    try {
+      for (int i = 0; i < members.length; i++) {
         try {
-          members[i - 1].waitFor();
+          members[i].waitFor();
         } catch (InterruptedException ex) {
-          // Skip this one
+          // Flush whatever it managed to output
         }
-        if (members[i - 1].exitValue().orElse(1) != 0) {
-          // Fail on the first failure
-          break;
-        }
-        members[i].start();
+        this.finishMember(i);
+        buffers[i].writeTo(orderedOutput);
+        orderedOutput.flush();
+        buffers[i].discard();
       }
+    } catch (IOException ex) {
+      // The target went away, nothing more we can do with the output
+    } finally {
+      this.releaseBuffers();
+    }
+  }
+
+  /**
+   * Throw away any buffered output of a keep-order group, and close the target
+   */
+  private void releaseBuffers() {
+    for (int i = 0; i < buffers.length; i++) {
+      buffers[i].discard();
+    }
+    try {
+      orderedOutput.close();
+    } catch (IOException ex) {
+      // Just ignore it
     }
   }
 
@@ -75,9 +292,25 @@ public class GroupExecutable implements Executable {
     if (type == ProcessGroup.Type.Parallel) {
       for (int i = 0; i < members.length; i++) {
         members[i].waitFor();
+        this.finishMember(i);
+      }
+      if (collector != null) {
+        collector.join();
       }
     } else {
       members[members.length - 1].waitFor();
+      this.finishMember(members.length - 1);
+    }
+    if (tracer != null) {
+      tracer.finished(this, this.exitValue());
+    }
+  }
+
+  @Override
+  public void destroy() {
+    destroyed = true;
+    for (int i = 0; i < members.length; i++) {
+      members[i].destroy();
     }
   }
 
@@ -93,16 +326,48 @@ public class GroupExecutable implements Executable {
   }
 
   @Override
-  public void redirectOutput(String file, boolean append) {
+  public void redirectInput(byte[] data) {
     if (type == ProcessGroup.Type.Parallel) {
       for (int i = 0; i < members.length; i++) {
-        members[i].redirectOutput(file, append);
+        members[i].redirectInput(data);
       }
     } else {
+      members[0].redirectInput(data);
+    }
+  }
+
+  @Override
+  public void redirectOutput(String file, boolean append) {
+    if (type == ProcessGroup.Type.Parallel) {
+      // The members are pointed at the file when the group starts
+      sharedOutputFile = file;
+      appendSharedOutput = append;
+      sharedOutputStream = null;
+    } else {
+      lastOutputStream = null;
       members[members.length - 1].redirectOutput(file, append);
     }
   }
 
+  @Override
+  public void redirectOutput(OutputStream stream) {
+    if (type == ProcessGroup.Type.Parallel) {
+      // The members are pointed at the stream when the group starts
+      sharedOutputStream = stream;
+      sharedOutputFile = null;
+    } else {
+      lastOutputStream = stream;
+      members[members.length - 1].redirectOutput(stream);
+    }
+  }
+
+  @Override
+  public void processes(List<ProcessHandle> processes) {
+    for (int i = 0; i < members.length; i++) {
+      members[i].processes(processes);
+    }
+  }
+
   @Override
   public String threadInfo() {
     StringBuilder builder = new StringBuilder();
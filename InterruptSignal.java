@@ -0,0 +1,43 @@
+import java.lang.reflect.Proxy;
+
+/**
+ * Runs an action when the shell is sent SIGINT, as it is when Ctrl-C is
+ * pressed. Java's only way to handle a signal is sun.misc.Signal, an internal
+ * API which javac warns about everywhere it is named, and those warnings can't
+ * be turned off with @SuppressWarnings. So it is only ever reached through
+ * reflection, here, which keeps the build free of them.
+ */
+public class InterruptSignal {
+  /**
+   * Run an action every time SIGINT arrives, instead of exiting
+   *
+   * @param action What to do, which runs on a thread of its own
+   * @return True if the action was set up, false if signals can't be handled
+   *         on this JVM, so SIGINT still exits
+   */
+  public static boolean handle(Runnable action) {
+    try {
+      Class<?> signalClass = Class.forName("sun.misc.Signal");
+      Class<?> handlerClass = Class.forName("sun.misc.SignalHandler");
+      Object handler = Proxy.newProxyInstance(handlerClass.getClassLoader(), new Class<?>[] { handlerClass },
+          (proxy, method, args) -> {
+            switch (method.getName()) {
+              case "handle":
+                action.run();
+                return null;
+              case "equals":
+                return proxy == args[0];
+              case "hashCode":
+                return System.identityHashCode(proxy);
+              default:
+                return "InterruptSignal";
+            }
+          });
+      Object signal = signalClass.getConstructor(String.class).newInstance("INT");
+      signalClass.getMethod("handle", signalClass, handlerClass).invoke(null, signal, handler);
+      return true;
+    } catch (ReflectiveOperationException | RuntimeException ex) {
+      return false;
+    }
+  }
+}
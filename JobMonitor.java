@@ -0,0 +1,284 @@
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Keeps track of background jobs and what they cost. A single sampling thread
+ * wakes up once every SAMPLE_INTERVAL while any job is running, reads the CPU
+ * time of every process each job started and every process below those, and
+ * works out how much CPU each one used since the last sample. The thread stops
+ * sampling while there are no jobs, so an idle shell costs nothing.
+ */
+public class JobMonitor {
+  /**
+   * How often running jobs are sampled, in milliseconds
+   */
+  static final long SAMPLE_INTERVAL = 1000;
+
+  private ArrayList<Job> jobs = new ArrayList<>(); // Every job not yet reported as done
+  private int nextId = 1; // The number of the next job
+  private Thread sampler; // The sampling thread, started with the first job
+
+  /**
+   * Start keeping track of a job which has been started in the background. A
+   * thread of its own waits for the job, which is how it is known to be done,
+   * and lets a group in a trace record when it finished
+   *
+   * @param description What the job is running
+   * @param root        The executable of the job
+   * @return The job
+   */
+  public synchronized Job add(String description, Executable root) {
+    Job job = new Job(nextId++, description, root);
+    jobs.add(job);
+    Thread waiter = new Thread(() -> {
+      try {
+        root.waitFor();
+      } catch (InterruptedException ex) {
+        // Nothing interrupts this thread
+      }
+      job.finish();
+    }, "job-waiter-" + job.id);
+    waiter.setDaemon(true);
+    waiter.start();
+    if (sampler == null) {
+      sampler = new Thread(this::sampleForever, "job-monitor");
+      sampler.setDaemon(true);
+      sampler.start();
+    }
+    this.notifyAll();
+    return job;
+  }
+
+  /**
+   * Get every job, with its latest sample. Jobs that are done are forgotten once
+   * they have been returned from here
+   *
+   * @return The jobs, in the order they were started
+   */
+  public synchronized List<Job> jobs() {
+    ArrayList<Job> current = new ArrayList<>(jobs);
+    jobs.removeIf(job -> job.done);
+    if (jobs.isEmpty()) {
+      nextId = 1;
+    }
+    return current;
+  }
+
+  /**
+   * Sample every job, over and over, waiting while there are none running
+   */
+  private void sampleForever() {
+    while (true) {
+      ArrayList<Job> running;
+      synchronized (this) {
+        while (!this.anyRunning()) {
+          try {
+            this.wait();
+          } catch (InterruptedException ex) {
+            return;
+          }
+        }
+        running = new ArrayList<>(jobs);
+      }
+      try {
+        Thread.sleep(SAMPLE_INTERVAL);
+      } catch (InterruptedException ex) {
+        return;
+      }
+      for (Job job : running) {
+        job.sample();
+      }
+    }
+  }
+
+  /**
+   * @return True if any job is still running
+   */
+  private boolean anyRunning() {
+    for (Job job : jobs) {
+      if (!job.done) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * A job running in the background, and what it has cost so far
+   */
+  public static class Job {
+    private int id; // The number of the job
+    private String description; // What the job is running
+    private Executable root; // The executable of the job
+    private Instant started = Instant.now(); // When the job was started
+    private Instant finished; // When the job finished, null while it is running
+    private volatile boolean done; // True once the job has finished
+    private HashMap<Long, ProcessSample> samples = new HashMap<>(); // The latest sample of every process seen, by pid
+    private long lastSample = System.nanoTime(); // When the job was last sampled
+    private long finishedCpuNanos; // The CPU time of processes in the job which have exited
+
+    Job(int id, String description, Executable root) {
+      this.id = id;
+      this.description = description;
+      this.root = root;
+    }
+
+    /**
+     * Note that the job has finished, once waiting for it has returned. The
+     * exit value of the job can't tell, since a group has one as soon as a
+     * member fails and a builtin can set one before it is done
+     */
+    synchronized void finish() {
+      finished = Instant.now();
+      done = true;
+    }
+
+    /**
+     * Read the CPU time of every live process in the job
+     */
+    synchronized void sample() {
+      if (done) {
+        return;
+      }
+      long now = System.nanoTime();
+      long elapsed = Math.max(1, now - lastSample);
+      lastSample = now;
+      ArrayList<ProcessHandle> handles = new ArrayList<>();
+      root.processes(handles);
+      for (int i = 0, count = handles.size(); i < count; i++) {
+        handles.get(i).descendants().forEach(handles::add);
+      }
+      for (ProcessSample sample : samples.values()) {
+        sample.alive = false;
+        sample.cpuPercent = 0;
+      }
+      for (ProcessHandle handle : handles) {
+        if (!handle.isAlive()) {
+          continue;
+        }
+        ProcessHandle.Info info = handle.info();
+        ProcessSample sample = samples.get(handle.pid());
+        if (sample == null) {
+          sample = new ProcessSample(handle.pid(), info.commandLine().or(info::command).orElse("?"),
+              info.startInstant().orElse(Instant.now()));
+          samples.put(handle.pid(), sample);
+        }
+        long cpu = info.totalCpuDuration().map(Duration::toNanos).orElse(sample.cpuNanos);
+        sample.cpuPercent = 100.0 * Math.max(0, cpu - sample.cpuNanos) / elapsed;
+        sample.cpuNanos = cpu;
+        sample.alive = true;
+      }
+      // Forget processes which are gone, apart from the CPU they used
+      Iterator<ProcessSample> iter = samples.values().iterator();
+      long finishedCpu = 0;
+      while (iter.hasNext()) {
+        ProcessSample sample = iter.next();
+        if (!sample.alive) {
+          finishedCpu += sample.cpuNanos;
+          iter.remove();
+        }
+      }
+      finishedCpuNanos += finishedCpu;
+    }
+
+    /**
+     * @return The number of the job
+     */
+    public int id() {
+      return id;
+    }
+
+    /**
+     * @return What the job is running
+     */
+    public String description() {
+      return description;
+    }
+
+    /**
+     * @return How long the job has been running, or ran for
+     */
+    public synchronized Duration runtime() {
+      return Duration.between(started, finished == null ? Instant.now() : finished);
+    }
+
+    /**
+     * @return The exit value of the job, or empty if it is still running
+     */
+    public Optional<Integer> exitValue() {
+      return done ? root.exitValue() : Optional.empty();
+    }
+
+    /**
+     * @return The CPU used by the job over the last sample, as a percentage of
+     *         one processor, or 0 once it is done
+     */
+    public synchronized double cpuPercent() {
+      if (done) {
+        return 0;
+      }
+      double total = 0;
+      for (ProcessSample sample : samples.values()) {
+        total += sample.cpuPercent;
+      }
+      return total;
+    }
+
+    /**
+     * @return The CPU time used by every process in the job so far
+     */
+    public synchronized Duration cpuTime() {
+      long total = finishedCpuNanos;
+      for (ProcessSample sample : samples.values()) {
+        total += sample.cpuNanos;
+      }
+      return Duration.ofNanos(total);
+    }
+
+    /**
+     * @return The latest sample of every live process in the job
+     */
+    public synchronized List<ProcessSample> processes() {
+      ArrayList<ProcessSample> copies = new ArrayList<>(samples.size());
+      for (ProcessSample sample : samples.values()) {
+        copies.add(sample.copy());
+      }
+      copies.sort((a, b) -> Long.compare(a.pid, b.pid));
+      return copies;
+    }
+  }
+
+  /**
+   * The latest sample of one process
+   */
+  public static class ProcessSample {
+    long pid; // The process id
+    String command; // The command line of the process
+    Instant started; // When the process started
+    long cpuNanos; // The CPU time the process has used
+    double cpuPercent; // The CPU used over the last sample, as a percentage of one processor
+    boolean alive; // True if the process was alive at the last sample
+
+    ProcessSample(long pid, String command, Instant started) {
+      this.pid = pid;
+      this.command = command;
+      this.started = started;
+    }
+
+    /**
+     * @return A copy of this sample, which won't change with later samples
+     */
+    ProcessSample copy() {
+      ProcessSample copy = new ProcessSample(pid, command, started);
+      copy.cpuNanos = cpuNanos;
+      copy.cpuPercent = cpuPercent;
+      copy.alive = alive;
+      return copy;
+    }
+  }
+}
@@ -0,0 +1,88 @@
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Passes output on to another stream until a limit is reached, then destroys
+ * the command writing it and throws the rest away. Processes can only write to
+ * this through a pipe, so each one writing here has a thread copying its
+ * output, and isn't connected to the terminal
+ */
+public class LimitedOutputStream extends OutputStream {
+  private OutputStream target; // Where the output goes
+  private long remaining; // How many more bytes can be written
+  private int lastByte = '\n'; // The last byte passed on, to tell if output stopped mid-line
+  private Executable executable; // The command to destroy once the limit is reached, set after creation
+  private volatile boolean exceeded; // True once the limit has been reached
+
+  /**
+   * Create a limited output stream
+   *
+   * @param target The stream to pass output on to
+   * @param limit  The most bytes to pass on
+   */
+  public LimitedOutputStream(OutputStream target, long limit) {
+    this.target = target;
+    this.remaining = limit;
+  }
+
+  /**
+   * @param executable The command writing to this stream, to destroy once the
+   *                   limit is reached
+   */
+  public synchronized void setExecutable(Executable executable) {
+    this.executable = executable;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] { (byte) b }, 0, 1);
+  }
+
+  @Override
+  public synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+    if (length <= remaining) {
+      target.write(bytes, offset, length);
+      remaining -= length;
+      if (length > 0) {
+        lastByte = bytes[offset + length - 1];
+      }
+      return;
+    }
+    if (remaining > 0) {
+      target.write(bytes, offset, (int) remaining);
+      lastByte = bytes[offset + (int) remaining - 1];
+      remaining = 0;
+    }
+    if (!exceeded) {
+      exceeded = true;
+      if (lastByte != '\n') {
+        // Whatever reports the limit being reached starts on a line of its own
+        target.write('\n');
+      }
+      target.flush();
+      if (executable != null) {
+        executable.destroy();
+      }
+    }
+  }
+
+  /**
+   * @return True if the limit was reached and the command destroyed
+   */
+  public boolean exceeded() {
+    return exceeded;
+  }
+
+  @Override
+  public synchronized void flush() throws IOException {
+    target.flush();
+  }
+
+  /**
+   * Closing only flushes, the target belongs to whoever created this stream
+   */
+  @Override
+  public void close() throws IOException {
+    flush();
+  }
+}
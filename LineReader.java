@@ -0,0 +1,105 @@
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.List;
+
+/**
+ * Reads input one line at a time, keeping track of the line number. Used both
+ * for reading commands and for the Parser to read the bodies of here-documents
+ * from the same input. Reads either from a reader, or from lines that have
+ * already been read into memory.
+ */
+public class LineReader implements Closeable {
+  /**
+   * The size of the read buffer, large so that piped-in commands are read in
+   * big chunks
+   */
+  static final int BUFFER_SIZE = 1 << 16;
+
+  private BufferedReader reader; // The underlying reader, null if reading from a list
+  private List<String> lines; // The lines to read from, if not reading from a reader
+  private int lineNumber; // The number of the last line read, starting at 1
+
+  /**
+   * Create a line reader
+   * 
+   * @param reader The reader to read lines from
+   */
+  public LineReader(Reader reader) {
+    this.reader = new BufferedReader(reader, BUFFER_SIZE);
+  }
+
+  /**
+   * Create a line reader
+   * 
+   * @param stream The stream to read lines from
+   */
+  public LineReader(InputStream stream) {
+    this(new InputStreamReader(stream));
+  }
+
+  /**
+   * Create a line reader over lines already in memory
+   * 
+   * @param lines The lines to read
+   * @param first The index of the first line to read
+   */
+  public LineReader(List<String> lines, int first) {
+    this.lines = lines;
+    this.lineNumber = first;
+  }
+
+  /**
+   * Read the next line
+   * 
+   * @return The next line, without the line terminator, or null at the end of
+   *         the input
+   */
+  public String nextLine() {
+    if (lines != null) {
+      return lineNumber < lines.size() ? lines.get(lineNumber++) : null;
+    }
+    String line;
+    try {
+      line = reader.readLine();
+    } catch (IOException ex) {
+      // Treat a failed read the same as the end of the input
+      return null;
+    }
+    if (line != null) {
+      lineNumber++;
+    }
+    return line;
+  }
+
+  /**
+   * @return True if the next line can be read without waiting for more input
+   */
+  public boolean ready() {
+    if (lines != null) {
+      return true;
+    }
+    try {
+      return reader.ready();
+    } catch (IOException ex) {
+      return false;
+    }
+  }
+
+  /**
+   * @return The number of the last line read, starting at 1
+   */
+  public int lineNumber() {
+    return lineNumber;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (reader != null) {
+      reader.close();
+    }
+  }
+}
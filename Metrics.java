@@ -0,0 +1,347 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts what the shell does and how long it takes, for the stats builtin.
+ * Recording has to be cheap enough to leave on all the time, so nothing here
+ * takes a lock: counters are LongAdders, which give each contending thread its
+ * own cell, and histograms are arrays of atomic counts over buckets which grow
+ * exponentially, so a time is recorded with one increment wherever it falls.
+ * The metrics can also be dumped to a file every so often, in the Prometheus
+ * text format, for a node exporter's textfile collector to pick up.
+ */
+public class Metrics {
+  private static final ArrayList<Counter> counters = new ArrayList<>(); // Every counter, in the order they were made
+  private static final ArrayList<Histogram> histograms = new ArrayList<>(); // Every histogram, in the order they were made
+
+  static final Counter COMMANDS = counter("jsh_commands_total", "Commands run");
+  static final Counter RESOLVE_HITS = counter("jsh_resolve_cache_hits_total",
+      "Commands found where they were found last time");
+  static final Counter RESOLVE_MISSES = counter("jsh_resolve_cache_misses_total",
+      "Commands which had to be searched for on the PATH");
+  static final Counter PIPE_BYTES = counter("jsh_pipe_bytes_total", "Bytes passed between the members of pipelines");
+  static final Histogram PARSE = histogram("jsh_parse_seconds", "Time taken to parse a command");
+  static final Histogram SPAWN = histogram("jsh_spawn_seconds", "Time taken to start a process");
+  static final Histogram SUGGEST = histogram("jsh_suggest_seconds",
+      "Time taken to suggest commands for one that wasn't found");
+  static final Histogram HISTORY_WRITE = histogram("jsh_history_write_seconds",
+      "Time taken to write a command to the history, or flush the history");
+
+  private static ScheduledThreadPoolExecutor dumper; // Runs the periodic dump, started the first time one is asked for
+  private static ScheduledFuture<?> dump; // The periodic dump, null if there isn't one
+
+  /**
+   * Make a counter
+   *
+   * @param name The name of the counter
+   * @param help What the counter counts
+   * @return The counter
+   */
+  private static Counter counter(String name, String help) {
+    Counter counter = new Counter(name, help);
+    counters.add(counter);
+    return counter;
+  }
+
+  /**
+   * Make a histogram of times
+   *
+   * @param name The name of the histogram
+   * @param help What the histogram records
+   * @return The histogram
+   */
+  private static Histogram histogram(String name, String help) {
+    Histogram histogram = new Histogram(name, help);
+    histograms.add(histogram);
+    return histogram;
+  }
+
+  /**
+   * Describe every metric, for a person to read
+   *
+   * @return The lines of the description
+   */
+  public static List<String> summary() {
+    ArrayList<String> lines = new ArrayList<>();
+    for (Counter counter : counters) {
+      lines.add(String.format("%-32s %d%n", counter.name, counter.sum()));
+    }
+    long hits = RESOLVE_HITS.sum();
+    long lookups = hits + RESOLVE_MISSES.sum();
+    lines.add(String.format("%-32s %s%n", "resolve cache hit rate",
+        lookups == 0 ? "-" : String.format("%.1f%%", 100.0 * hits / lookups)));
+    lines.add(String.format("%-32s %8s %9s %9s %9s %9s%n", "", "count", "p50", "p90", "p99", "max"));
+    for (Histogram histogram : histograms) {
+      Histogram.Snapshot snapshot = histogram.snapshot();
+      lines.add(String.format("%-32s %8d %9s %9s %9s %9s%n", histogram.name, snapshot.count,
+          CommandTimer.format(snapshot.quantile(0.5)), CommandTimer.format(snapshot.quantile(0.9)),
+          CommandTimer.format(snapshot.quantile(0.99)), CommandTimer.format(snapshot.max)));
+    }
+    return lines;
+  }
+
+  /**
+   * Describe every metric in the Prometheus text format. Histograms are
+   * described as summaries, with a few quantiles, since their buckets are far
+   * finer than anything needs to scrape
+   *
+   * @return The lines of the description
+   */
+  public static List<String> prometheus() {
+    ArrayList<String> lines = new ArrayList<>();
+    for (Counter counter : counters) {
+      lines.add("# HELP " + counter.name + " " + counter.help + "\n");
+      lines.add("# TYPE " + counter.name + " counter\n");
+      lines.add(counter.name + " " + counter.sum() + "\n");
+    }
+    for (Histogram histogram : histograms) {
+      Histogram.Snapshot snapshot = histogram.snapshot();
+      lines.add("# HELP " + histogram.name + " " + histogram.help + "\n");
+      lines.add("# TYPE " + histogram.name + " summary\n");
+      for (double quantile : new double[] { 0.5, 0.9, 0.99 }) {
+        lines.add(histogram.name + "{quantile=\"" + quantile + "\"} " + seconds(snapshot.quantile(quantile)) + "\n");
+      }
+      lines.add(histogram.name + "_sum " + seconds(snapshot.sum) + "\n");
+      lines.add(histogram.name + "_count " + snapshot.count + "\n");
+    }
+    return lines;
+  }
+
+  /**
+   * @param nanos A time in nanoseconds
+   * @return The time in seconds, as Prometheus expects times
+   */
+  private static String seconds(long nanos) {
+    return Double.toString(nanos / 1e9);
+  }
+
+  /**
+   * Write every metric to a file in the Prometheus text format every so often,
+   * replacing any dump already going. The file is replaced all at once, so
+   * whatever reads it never sees it half written
+   *
+   * @param file   The file to write
+   * @param millis How often to write it, in milliseconds
+   */
+  public static synchronized void dumpEvery(File file, long millis) {
+    stopDump();
+    if (dumper == null) {
+      dumper = new ScheduledThreadPoolExecutor(1, runnable -> {
+        Thread thread = new Thread(runnable, "metrics-dump");
+        thread.setDaemon(true);
+        return thread;
+      });
+      dumper.setRemoveOnCancelPolicy(true);
+    }
+    dump = dumper.scheduleAtFixedRate(() -> dumpTo(file), 0, millis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stop writing the metrics to a file
+   *
+   * @return True if they were being written
+   */
+  public static synchronized boolean stopDump() {
+    if (dump == null) {
+      return false;
+    }
+    dump.cancel(false);
+    dump = null;
+    return true;
+  }
+
+  /**
+   * Write every metric to a file in the Prometheus text format
+   *
+   * @param file The file to write
+   */
+  private static void dumpTo(File file) {
+    File temp = new File(file.getPath() + ".tmp");
+    try {
+      try (PrintWriter out = new PrintWriter(temp)) {
+        for (String line : prometheus()) {
+          out.print(line);
+        }
+      }
+      Files.move(temp.toPath(), Paths.get(file.getPath()), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException ex) {
+      // Try again next time
+      temp.delete();
+    }
+  }
+
+  /**
+   * A count of something which only goes up
+   */
+  public static class Counter {
+    private String name; // The name of the counter
+    private String help; // What the counter counts
+    private LongAdder count = new LongAdder(); // The count, striped across threads
+
+    Counter(String name, String help) {
+      this.name = name;
+      this.help = help;
+    }
+
+    /**
+     * Add one to the count
+     */
+    public void increment() {
+      count.increment();
+    }
+
+    /**
+     * @param amount How much to add to the count
+     */
+    public void add(long amount) {
+      count.add(amount);
+    }
+
+    /**
+     * @return The count
+     */
+    public long sum() {
+      return count.sum();
+    }
+  }
+
+  /**
+   * The distribution of a time, in nanoseconds. Each power of two is split into
+   * SUB_BUCKETS buckets, so every time is counted in a bucket within 12.5% of it,
+   * from a nanosecond up to centuries, in under 500 buckets
+   */
+  public static class Histogram {
+    /**
+     * How many bits below the highest are used to pick the bucket within a power
+     * of two
+     */
+    static final int SUB_BUCKET_BITS = 3;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private String name; // The name of the histogram
+    private String help; // What the histogram records
+    private AtomicLongArray counts = new AtomicLongArray(BUCKETS); // How many times fell in each bucket
+    private LongAdder sum = new LongAdder(); // Every time recorded, added up
+    private AtomicLong max = new AtomicLong(); // The longest time recorded
+
+    Histogram(String name, String help) {
+      this.name = name;
+      this.help = help;
+    }
+
+    /**
+     * Record how long something took
+     *
+     * @param nanos The time it took, in nanoseconds
+     */
+    public void record(long nanos) {
+      if (nanos < 0) {
+        nanos = 0;
+      }
+      counts.incrementAndGet(bucket(nanos));
+      sum.add(nanos);
+      if (nanos > max.get()) {
+        max.accumulateAndGet(nanos, Math::max);
+      }
+    }
+
+    /**
+     * Record how long something took, from when it started until now
+     *
+     * @param start When it started, from System.nanoTime()
+     */
+    public void recordSince(long start) {
+      this.record(System.nanoTime() - start);
+    }
+
+    /**
+     * @param value A time in nanoseconds
+     * @return The bucket the time falls in
+     */
+    static int bucket(long value) {
+      if (value < SUB_BUCKETS) {
+        return (int) value;
+      }
+      int exponent = 63 - Long.numberOfLeadingZeros(value);
+      int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+      return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @param bucket A bucket
+     * @return The longest time which falls in the bucket
+     */
+    static long upperBound(int bucket) {
+      if (bucket < SUB_BUCKETS) {
+        return bucket;
+      }
+      int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+      long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+      return lower + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /**
+     * @return A copy of the counts, which won't change as more times are recorded
+     */
+    Snapshot snapshot() {
+      long[] copy = new long[BUCKETS];
+      long count = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        copy[i] = counts.get(i);
+        count += copy[i];
+      }
+      return new Snapshot(copy, count, sum.sum(), max.get());
+    }
+
+    /**
+     * The counts of a histogram at one moment
+     */
+    static class Snapshot {
+      long[] counts; // How many times fell in each bucket
+      long count; // How many times were recorded
+      long sum; // Every time recorded, added up
+      long max; // The longest time recorded
+
+      Snapshot(long[] counts, long count, long sum, long max) {
+        this.counts = counts;
+        this.count = count;
+        this.sum = sum;
+        this.max = max;
+      }
+
+      /**
+       * @param quantile The fraction of times to be at or under the result
+       * @return The time which that fraction of times were at or under, as the
+       *         top of its bucket, or 0 if nothing has been recorded
+       */
+      long quantile(double quantile) {
+        if (count == 0) {
+          return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+          seen += counts[i];
+          if (seen >= rank) {
+            return Math.min(upperBound(i), max);
+          }
+        }
+        return max;
+      }
+    }
+  }
+}
@@ -0,0 +1,151 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An output stream that collects everything written to it in memory. Once the
+ * memory limit is reached, anything further is spilled into a temporary file,
+ * so a command producing huge output can't exhaust the heap. Besides the limit
+ * for each buffer, all buffers together hold at most GLOBAL_MEMORY_LIMIT bytes
+ * in memory, so many buffers filling at once can't exhaust it either.
+ */
+public class OutputBuffer extends OutputStream {
+  /**
+   * The most bytes held in memory by all output buffers combined
+   */
+  static final long GLOBAL_MEMORY_LIMIT = 64L << 20;
+
+  private static final AtomicLong globalMemory = new AtomicLong(); // Bytes held in memory by all output buffers
+
+  private byte[] buffer; // The in-memory part of the output
+  private int count; // How many bytes of buffer are in use
+  private int memoryLimit; // The most bytes to hold in memory before spilling
+  private File spillFile; // The temporary file holding output past the limit, null if not spilled
+  private OutputStream spillStream; // Used to write to the spill file
+
+  /**
+   * Create an output buffer
+   *
+   * @param memoryLimit The most bytes to hold in memory before spilling into a
+   *                    temporary file
+   */
+  public OutputBuffer(int memoryLimit) {
+    this.memoryLimit = memoryLimit;
+    buffer = new byte[Math.min(memoryLimit, 8192)];
+  }
+
+  @Override
+  public synchronized void write(int b) throws IOException {
+    write(new byte[] { (byte) b }, 0, 1);
+  }
+
+  @Override
+  public synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+    if (spillStream == null && count + length <= memoryLimit && reserveMemory(length)) {
+      if (count + length > buffer.length) {
+        buffer = Arrays.copyOf(buffer, Math.min(memoryLimit, Math.max(buffer.length * 2, count + length)));
+      }
+      System.arraycopy(bytes, offset, buffer, count, length);
+      count += length;
+      return;
+    }
+    if (spillStream == null) {
+      // The in-memory part stays as the start of the output, the file holds the rest
+      spillFile = File.createTempFile("spill", ".data");
+      spillStream = new BufferedOutputStream(new FileOutputStream(spillFile));
+    }
+    spillStream.write(bytes, offset, length);
+  }
+
+  /**
+   * Reserve space from the global memory limit
+   *
+   * @param length The number of bytes to reserve
+   * @return True if the space was reserved, false if there isn't enough left
+   */
+  private static boolean reserveMemory(int length) {
+    if (globalMemory.addAndGet(length) > GLOBAL_MEMORY_LIMIT) {
+      globalMemory.addAndGet(-length);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Copy everything written so far to another stream
+   *
+   * @param out The stream to copy into
+   * @throws IOException If reading the spill file or writing to out fails
+   */
+  public synchronized void writeTo(OutputStream out) throws IOException {
+    out.write(buffer, 0, count);
+    if (spillStream != null) {
+      spillStream.flush();
+      try (InputStream in = new FileInputStream(spillFile)) {
+        in.transferTo(out);
+      }
+    }
+  }
+
+  /**
+   * @return True if the output has grown past the memory limit
+   */
+  public synchronized boolean spilled() {
+    return spillFile != null;
+  }
+
+  @Override
+  public synchronized void flush() throws IOException {
+    if (spillStream != null) {
+      spillStream.flush();
+    }
+  }
+
+  /**
+   * Closing only flushes, the contents remain readable until discard() is called
+   */
+  @Override
+  public void close() throws IOException {
+    flush();
+  }
+
+  /**
+   * Throw away the contents, deleting the spill file if there is one
+   */
+  public synchronized void discard() {
+    globalMemory.addAndGet(-count);
+    buffer = new byte[0];
+    count = 0;
+    if (spillStream != null) {
+      try {
+        spillStream.close();
+      } catch (IOException ex) {
+        // We're deleting it anyway
+      }
+      spillFile.delete();
+      spillStream = null;
+      spillFile = null;
+    }
+  }
+
+  @Override
+  public synchronized String toString() {
+    if (spillStream == null) {
+      return new String(buffer, 0, count);
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      writeTo(out);
+    } catch (IOException ex) {
+      // Return whatever we managed to read
+    }
+    return out.toString();
+  }
+}
@@ -0,0 +1,150 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An on-disk cache of the output and exit code of deterministic commands, used
+ * by the cached builtin. Entries are keyed on everything that could change the
+ * result: the command and its arguments, the working directory, the identity
+ * of the executable, the session's changes to the environment, and the
+ * contents of its inputs. When the cache grows past its size limit, the least
+ * recently used entries are evicted.
+ */
+public class OutputCache {
+  /**
+   * The most bytes the cache can use on disk
+   */
+  static final long SIZE_LIMIT = 256L << 20;
+
+  private static final File DIRECTORY = new File(System.getProperty("user.home"), ".jshcache"); // Where entries are stored
+
+  /**
+   * Work out the key of a command
+   * 
+   * @param argv        The command and its arguments
+   * @param cwd         The working directory the command runs in
+   * @param executable  The path of the executable the command resolved to
+   * @param environment The environment the command runs with
+   * @param inputFile   The file the command takes input from, or null
+   * @param inputData   The data the command takes as input, or null
+   * @param inputs      Other files the command is declared to read
+   * @throws IOException If any of the input files can't be read
+   * @return The key, as a hexadecimal string
+   */
+  public static String key(String[] argv, String cwd, String executable, Environment environment,
+      String inputFile, byte[] inputData, List<String> inputs) throws IOException {
+    StringBuilder builder = new StringBuilder();
+    for (String arg : argv) {
+      builder.append(arg).append('\0');
+    }
+    builder.append(cwd).append('\0');
+    File exec = new File(executable);
+    builder.append(executable).append('\0').append(exec.length()).append('\0').append(exec.lastModified());
+    // Variables changed by export and unset can change the output, like LC_ALL
+    for (Map.Entry<String, String> change : environment.changes().entrySet()) {
+      builder.append("\0-e\0").append(change.getKey());
+      if (change.getValue() != null) {
+        builder.append('=').append(change.getValue());
+      }
+    }
+    if (inputFile != null) {
+      builder.append("\0<\0").append(Checkpoint.hex(Checkpoint.hashContents(new File(inputFile))));
+    } else if (inputData != null) {
+      builder.append("\0<<\0").append(Checkpoint.hex(Checkpoint.hash(inputData)));
+    }
+    for (String input : inputs) {
+      File file = new File(input);
+      if (!file.isAbsolute()) {
+        file = new File(cwd, input);
+      }
+      builder.append("\0-i\0").append(file.getPath()).append('\0').append(Checkpoint.hex(Checkpoint.hashContents(file)));
+    }
+    return Checkpoint.hex(Checkpoint.hash(builder.toString()));
+  }
+
+  /**
+   * Replay a cached result, if there is one
+   * 
+   * @param key The key of the command
+   * @param out Where to write the cached output
+   * @throws IOException If writing the output fails
+   * @return The cached exit code, or null if the command isn't cached
+   */
+  public static Integer replay(String key, OutputStream out) throws IOException {
+    File entry = new File(DIRECTORY, key);
+    DataInputStream reader;
+    try {
+      reader = new DataInputStream(new BufferedInputStream(new FileInputStream(entry)));
+    } catch (IOException ex) {
+      return null;
+    }
+    try (DataInputStream in = reader) {
+      int exitCode = in.readInt();
+      in.transferTo(out);
+      // Mark the entry as recently used
+      entry.setLastModified(System.currentTimeMillis());
+      return exitCode;
+    }
+  }
+
+  /**
+   * Store the result of a command, then evict old entries if the cache is over
+   * its size limit
+   * 
+   * @param key      The key of the command
+   * @param exitCode The exit code of the command
+   * @param output   The output of the command
+   */
+  public static void store(String key, int exitCode, OutputBuffer output) {
+    try {
+      DIRECTORY.mkdirs();
+      // Write to a temporary file first, so no one ever sees half an entry
+      File temp = File.createTempFile(key, ".tmp", DIRECTORY);
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+        out.writeInt(exitCode);
+        output.writeTo(out);
+      }
+      Files.move(temp.toPath(), new File(DIRECTORY, key).toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException ex) {
+      // The command just won't be cached
+      return;
+    }
+    evict();
+  }
+
+  /**
+   * Delete the least recently used entries until the cache is within its size
+   * limit
+   */
+  private static void evict() {
+    File[] entries = DIRECTORY.listFiles();
+    if (entries == null) {
+      return;
+    }
+    long size = 0;
+    for (File entry : entries) {
+      size += entry.length();
+    }
+    if (size <= SIZE_LIMIT) {
+      return;
+    }
+    Arrays.sort(entries, Comparator.comparingLong(File::lastModified));
+    for (int i = 0; i < entries.length && size > SIZE_LIMIT; i++) {
+      size -= entries[i].length();
+      entries[i].delete();
+    }
+  }
+}
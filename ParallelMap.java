@@ -0,0 +1,293 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs one command for every item of a list, with a limit on how many run at
+ * once. The items are split up between the threads of a work-stealing pool, so
+ * threads that finish their share early take over items from busier ones. The
+ * exit value of every item is kept, so failures can be reported per item.
+ */
+public class ParallelMap {
+  /**
+   * The word in the command which is replaced with each item. If the command
+   * doesn't contain it, the item is added as the last argument
+   */
+  static final String PLACEHOLDER = "{}";
+
+  private Executor executor; // The executor running the items
+  private String[] command; // The command to run for each item
+  private List<String> items; // The items to run the command for
+  private int jobs; // The most items to run at once
+  private boolean keepOrder; // True to output each item in full, in the order of the items
+  private int[] exitValues; // The exit value of each item
+  private Semaphore slots; // Limits how many items run at once
+  private Set<Executable> running = ConcurrentHashMap.newKeySet(); // The items currently running
+  private volatile boolean cancelled; // True once the run has been interrupted
+  private SharedAppender appender; // Shares the output between the items, if they don't keep order
+  private OutputBuffer[] buffers; // The output of each item, if they keep order
+  private boolean[] finished; // Whether each item has finished, if they keep order
+  private int nextToFlush; // The first item whose output hasn't been written yet, if they keep order
+  private OutputStream out; // Where the output goes
+
+  /**
+   * Create a parallel map
+   *
+   * @param executor  The executor to run the items with
+   * @param command   The command to run for each item, containing PLACEHOLDER
+   *                  wherever the item goes
+   * @param items     The items to run the command for
+   * @param jobs      The most items to run at once
+   * @param keepOrder True to output each item in full, in the order of the
+   *                  items, rather than as they run
+   */
+  public ParallelMap(Executor executor, String[] command, List<String> items, int jobs, boolean keepOrder) {
+    this.executor = executor;
+    this.command = command;
+    this.items = items;
+    this.jobs = jobs;
+    this.keepOrder = keepOrder;
+  }
+
+  /**
+   * Run the command for every item, waiting for them all to finish
+   *
+   * @param out Where to write the output of the items, closed once they have all
+   *            finished
+   * @throws InterruptedException If interrupted, after killing the items that
+   *                              were running
+   * @return The exit value of each item, 127 for items that couldn't be resolved
+   *         and 126 for items that couldn't be started
+   */
+  public int[] run(OutputStream out) throws InterruptedException {
+    this.out = out;
+    exitValues = new int[items.size()];
+    slots = new Semaphore(jobs);
+    OutputStream holder = null; // Keeps the shared target open while items come and go
+    if (keepOrder) {
+      buffers = new OutputBuffer[items.size()];
+      finished = new boolean[items.size()];
+    } else {
+      appender = new SharedAppender(out);
+      holder = appender.newWriter();
+    }
+    ForkJoinPool pool = new ForkJoinPool(jobs);
+    try {
+      pool.submit(new MapTask(0, items.size())).get();
+    } catch (InterruptedException ex) {
+      cancelled = true;
+      for (Executable executable : running) {
+        executable.destroy();
+      }
+      throw ex;
+    } catch (ExecutionException ex) {
+      // Items handle their own failures, so this can only be a bug
+      throw new RuntimeException(ex.getCause());
+    } finally {
+      pool.shutdownNow();
+      try {
+        if (holder != null) {
+          holder.close();
+        } else {
+          this.releaseBuffers();
+          out.close();
+        }
+      } catch (IOException ex) {
+        // The target went away, nothing more we can do with the output
+      }
+    }
+    return exitValues;
+  }
+
+  /**
+   * Add the processes of the items currently running
+   *
+   * @param processes The list to add the processes to
+   */
+  public void processes(List<ProcessHandle> processes) {
+    for (Executable executable : running) {
+      executable.processes(processes);
+    }
+  }
+
+  /**
+   * Run the command for one item, and wait for it to finish
+   *
+   * @param index The index of the item
+   */
+  private void runItem(int index) {
+    try {
+      slots.acquire();
+    } catch (InterruptedException ex) {
+      exitValues[index] = 130;
+      return;
+    }
+    try {
+      if (cancelled) {
+        exitValues[index] = 130;
+        return;
+      }
+      exitValues[index] = this.execute(index);
+    } finally {
+      slots.release();
+    }
+    if (keepOrder) {
+      this.flushInOrder(index);
+    }
+  }
+
+  /**
+   * Resolve, start and wait for the command of one item
+   *
+   * @param index The index of the item
+   * @return The exit value of the item
+   */
+  private int execute(int index) {
+    String[] words = this.commandFor(items.get(index));
+    String[] args = new String[words.length - 1];
+    System.arraycopy(words, 1, args, 0, args.length);
+    OutputStream itemOut;
+    if (keepOrder) {
+      buffers[index] = new OutputBuffer(GroupExecutable.KEEP_ORDER_MEMORY_LIMIT);
+      itemOut = buffers[index];
+    } else {
+      itemOut = appender.newWriter();
+    }
+    Executable executable;
+    try {
+      executable = executor.resolveCommand(words[0], args);
+    } catch (Executor.ExecutionException ex) {
+      this.closeQuietly(itemOut);
+      return 127;
+    }
+    // Items shouldn't compete with the shell for the terminal's input
+    executable.redirectInput(new byte[0]);
+    executable.redirectOutput(itemOut);
+    running.add(executable);
+    try {
+      executable.start();
+      executable.waitFor();
+      return executable.exitValue().orElse(1);
+    } catch (Executor.ExecutionException ex) {
+      this.closeQuietly(itemOut);
+      return 126;
+    } catch (InterruptedException ex) {
+      executable.destroy();
+      return 130;
+    } finally {
+      running.remove(executable);
+    }
+  }
+
+  /**
+   * @param item An item
+   * @return The command to run for the item
+   */
+  private String[] commandFor(String item) {
+    boolean placed = false;
+    String[] words = new String[command.length];
+    for (int i = 0; i < command.length; i++) {
+      if (command[i].contains(PLACEHOLDER)) {
+        words[i] = command[i].replace(PLACEHOLDER, item);
+        placed = true;
+      } else {
+        words[i] = command[i];
+      }
+    }
+    if (!placed) {
+      words = Arrays.copyOf(words, words.length + 1);
+      words[words.length - 1] = item;
+    }
+    return words;
+  }
+
+  /**
+   * Mark an item of a keep-order run as finished, and write out the output of
+   * every finished item which has nothing unfinished before it
+   *
+   * @param index The index of the item which finished
+   */
+  private synchronized void flushInOrder(int index) {
+    finished[index] = true;
+    while (nextToFlush < finished.length && finished[nextToFlush]) {
+      OutputBuffer buffer = buffers[nextToFlush];
+      buffers[nextToFlush] = null;
+      nextToFlush++;
+      if (buffer == null) {
+        continue;
+      }
+      try {
+        buffer.writeTo(out);
+        out.flush();
+      } catch (IOException ex) {
+        // The target went away, nothing more we can do with the output
+      } finally {
+        buffer.discard();
+      }
+    }
+  }
+
+  /**
+   * Throw away the buffers of a keep-order run which never got written out
+   */
+  private synchronized void releaseBuffers() {
+    for (int i = 0; i < buffers.length; i++) {
+      if (buffers[i] != null) {
+        buffers[i].discard();
+        buffers[i] = null;
+      }
+    }
+  }
+
+  /**
+   * Close a stream, ignoring failures
+   *
+   * @param stream The stream to close
+   */
+  private void closeQuietly(OutputStream stream) {
+    try {
+      stream.close();
+    } catch (IOException ex) {
+      // Just ignore it
+    }
+  }
+
+  /**
+   * Runs a range of items, splitting it in half until there's one item left so
+   * idle threads can steal the other half
+   */
+  private class MapTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private int start; // The first item of the range
+    private int end; // One past the last item of the range
+
+    /**
+     * @param start The first item of the range
+     * @param end   One past the last item of the range
+     */
+    MapTask(int start, int end) {
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    protected void compute() {
+      if (end - start <= 1) {
+        if (start < end) {
+          ParallelMap.this.runItem(start);
+        }
+        return;
+      }
+      int middle = (start + end) >>> 1;
+      invokeAll(new MapTask(start, middle), new MapTask(middle, end));
+    }
+  }
+}
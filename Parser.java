@@ -15,6 +15,8 @@ public class Parser {
   private int parenLevel; // How many parens deep we are
   private boolean background; // Track if this command is meant to run in the background
   private Token curToken; // The current token we are on
+  private LineReader lines; // Where to read the bodies of here-documents from, may be null
+  private ArrayList<HereDocument> hereDocuments = new ArrayList<>(); // Here-documents waiting for their bodies
   final String[] STRING_ARR = new String[0]; // Used to tell ArrayList method which array type to return
   final ProcessNode[] NODE_ARR = new ProcessNode[0]; // Used to tell ArrayList method which array type to return
 
@@ -28,6 +30,18 @@ public class Parser {
     this.pos = 0;
   }
 
+  /**
+   * Construct a parser that can read the bodies of here-documents from the lines
+   * following the input
+   * 
+   * @param input The string to parse
+   * @param lines The input the string came from, positioned just after it
+   */
+  public Parser(String input, LineReader lines) {
+    this(input);
+    this.lines = lines;
+  }
+
   /**
    * Parse the input into a process tree
    * 
@@ -35,14 +49,106 @@ public class Parser {
    * @return The root node of the resulting tree
    */
   public ProcessNode parse() throws SyntaxException {
-    this.next();
-    ProcessNode root = this.parseMaybeGroup();
-    if (parenLevel != 0) {
-      throw new SyntaxException("Mismatched parentheses.", pos, input);
+    long start = System.nanoTime();
+    ShellEvents.Parse event = ShellEvents.enabled ? new ShellEvents.Parse() : null;
+    if (event != null) {
+      event.begin();
+    }
+    boolean succeeded = false;
+    try {
+      this.next();
+      ProcessNode root = this.parseMaybeGroup();
+      if (parenLevel != 0) {
+        throw new SyntaxException("Mismatched parentheses.", pos, input);
+      }
+      if (root != null)
+        root.setBackground(background);
+      this.readHereDocuments();
+      succeeded = true;
+      if (root != null) {
+        root.setParseNanos(System.nanoTime() - start);
+      }
+      return root;
+    } catch (SyntaxException ex) {
+      // The bodies of the here-documents are still in the lines that follow, and
+      // must not be run as commands
+      this.skipHereDocuments();
+      throw ex;
+    } finally {
+      Metrics.PARSE.recordSince(start);
+      if (event != null) {
+        event.end();
+        if (event.shouldCommit()) {
+          event.command = ShellEvents.truncate(input);
+          event.succeeded = succeeded;
+          event.commit();
+        }
+      }
+    }
+  }
+
+  /**
+   * Read the bodies of any here-documents in the input, which are the lines
+   * following the input up to the delimiter. The body is kept in memory and
+   * becomes the input of its node.
+   * 
+   * @throws SyntaxException Throw if there is nowhere to read the bodies from, or
+   *                         the input ends before the delimiter
+   */
+  private void readHereDocuments() throws SyntaxException {
+    while (!hereDocuments.isEmpty()) {
+      HereDocument hereDocument = hereDocuments.remove(0);
+      if (lines == null) {
+        throw new SyntaxException("Here-documents are not supported here.", hereDocument.pos, input);
+      }
+      StringBuilder body = new StringBuilder();
+      while (true) {
+        String line = lines.nextLine();
+        if (line == null) {
+          throw new SyntaxException("Here-document is missing its '" + hereDocument.delimiter + "' line.",
+              hereDocument.pos, input);
+        }
+        if (line.equals(hereDocument.delimiter)) {
+          break;
+        }
+        body.append(line);
+        body.append('\n');
+      }
+      hereDocument.node.setInputData(body.toString().getBytes());
     }
-    if (root != null)
-      root.setBackground(background);
-    return root;
+  }
+
+  /**
+   * Skip over the bodies of any here-documents in the input after a syntax
+   * error, including those after the error which were never parsed, so the lines
+   * of the bodies aren't read as commands.
+   */
+  private void skipHereDocuments() {
+    if (lines == null) {
+      return;
+    }
+    try {
+      while (curToken != null) {
+        if (curToken.type == Token.Type.HereDocument) {
+          int redirectPos = pos - curToken.value.length();
+          this.next();
+          if (curToken != null && (curToken.type == Token.Type.String || curToken.type == Token.Type.Glob)) {
+            hereDocuments.add(new HereDocument(null, curToken.value, redirectPos));
+          }
+        } else {
+          this.next();
+        }
+      }
+    } catch (SyntaxException ex) {
+      // The rest of the input can't be read, so only skip the bodies found so far
+    }
+    for (HereDocument hereDocument : hereDocuments) {
+      String line = lines.nextLine();
+      while (line != null && !line.equals(hereDocument.delimiter)) {
+        line = lines.nextLine();
+      }
+    }
+    hereDocuments.clear();
   }
 
   /**
@@ -81,7 +187,7 @@ public class Parser {
       parenLevel++;
       this.next();
       node = this.parseMaybeGroup();
-    } else if (curToken.type == Token.Type.String) {
+    } else if (curToken.isWord()) {
       node = this.parseCommand();
     } else {
       throw this.makeUnexpectedToken();
@@ -91,23 +197,58 @@ public class Parser {
   }
 
   /**
-   * Parse a command, which is just a series of one or more strings
+   * Parse a command, which is just a series of one or more strings, glob
+   * patterns, or command substitutions
    * 
    * @throws SyntaxException Throw if parsing fails due to malformed input
    * @return The node for the command
    */
   private ProcessNode parseCommand() throws SyntaxException {
     ArrayList<String> args = new ArrayList<>();
-    while (curToken != null && curToken.type == Token.Type.String) {
+    ArrayList<ProcessNode> substitutions = null;
+    ArrayList<Integer> globs = null; // The positions of words to expand as glob patterns
+    while (curToken != null && curToken.isWord()) {
+      if (curToken.type == Token.Type.Substitution) {
+        if (substitutions == null) {
+          substitutions = new ArrayList<>();
+        }
+        while (substitutions.size() < args.size()) {
+          substitutions.add(null);
+        }
+        substitutions.add(curToken.node);
+      } else if (curToken.type == Token.Type.Glob) {
+        if (globs == null) {
+          globs = new ArrayList<>();
+        }
+        globs.add(args.size());
+      }
       args.add(curToken.value);
       this.next();
     }
-    return new ShellProcess(args.toArray(STRING_ARR));
+    if (substitutions == null && globs == null) {
+      return new ShellProcess(args.toArray(STRING_ARR));
+    }
+    ProcessNode[] substitutionArr = null;
+    if (substitutions != null) {
+      while (substitutions.size() < args.size()) {
+        substitutions.add(null);
+      }
+      substitutionArr = substitutions.toArray(NODE_ARR);
+    }
+    boolean[] globArr = null;
+    if (globs != null) {
+      globArr = new boolean[args.size()];
+      for (int index : globs) {
+        globArr[index] = true;
+      }
+    }
+    return new ShellProcess(args.toArray(STRING_ARR), substitutionArr, globArr);
   }
 
   /**
-   * Parse the redirects for another node, which is a series of '<', '>', or '>>'
-   * with files after each
+   * Parse the redirects for another node, which is a series of '<', '>', '>>',
+   * '<<', or '<<<' with files, here-document delimiters, or here-strings after
+   * each
    * 
    * @param node The node to associate the redirects with
    * @throws SyntaxException Throw if parsing fails due to malformed input
@@ -115,12 +256,21 @@ public class Parser {
   private void maybeParseRedirects(ProcessNode node) throws SyntaxException {
     while (curToken != null && curToken.isRedirect()) {
       Token.Type type = curToken.type;
+      int redirectPos = pos - curToken.value.length();
       this.next();
-      if (curToken.type != Token.Type.String) {
+      if (curToken == null) {
+        throw new SyntaxException("Unexpected end of input.", pos, input);
+      }
+      if (curToken.type != Token.Type.String && curToken.type != Token.Type.Glob) {
+        // Redirect targets are used as they are, even if they look like patterns
         throw this.makeUnexpectedToken();
       }
       if (type == Token.Type.RedirectInput) {
         node.setInput(curToken.value);
+      } else if (type == Token.Type.HereDocument) {
+        hereDocuments.add(new HereDocument(node, curToken.value, redirectPos));
+      } else if (type == Token.Type.HereString) {
+        node.setInputData((curToken.value + "\n").getBytes());
       } else {
         node.setOutput(curToken.value, type == Token.Type.RedirectOutputAppend);
       }
@@ -206,12 +356,67 @@ public class Parser {
     return new SyntaxException("Unexpected token '" + curToken.value + "'.", pos - curToken.value.length(), input);
   }
 
+  /**
+   * Read a command substitution, "$(...)", starting at the current position.
+   * The enclosed command is parsed with its own parser, so it becomes a
+   * ProcessNode tree of its own
+   * 
+   * @throws SyntaxException Throw if the substitution is unterminated or the
+   *                         enclosed command is malformed
+   * @return The substitution token
+   */
+  private Token readSubstitution() throws SyntaxException {
+    int startPos = pos;
+    pos += 2;
+    int depth = 1;
+    char quote = 0; // The quote character we are inside of, if any
+    while (pos < input.length()) {
+      char c = input.charAt(pos);
+      if (quote != 0) {
+        if (c == '\\') {
+          pos++;
+        } else if (c == quote) {
+          quote = 0;
+        }
+      } else if (c == '"' || c == '\'') {
+        quote = c;
+      } else if (c == '(') {
+        depth++;
+      } else if (c == ')') {
+        depth--;
+        if (depth == 0) {
+          break;
+        }
+      }
+      pos++;
+    }
+    if (depth != 0) {
+      throw new SyntaxException("Unterminated command substitution.", startPos, input);
+    }
+    String inner = input.substring(startPos + 2, pos);
+    pos++;
+    ProcessNode node;
+    try {
+      node = new Parser(inner).parse();
+    } catch (SyntaxException ex) {
+      // Report the error relative to the whole input instead of just the substitution
+      throw new SyntaxException(ex.getMessage(), startPos + 2 + ex.pos, input);
+    }
+    if (node == null) {
+      throw new SyntaxException("Empty command substitution.", startPos, input);
+    }
+    Token token = new Token(Token.Type.Substitution, input.substring(startPos, pos));
+    token.node = node;
+    return token;
+  }
+
   /**
    * Move to the next token in the input stream
    * 
+   * @throws SyntaxException Throw if the next token is malformed
    * @return The next token, which is also curToken
    */
-  private Token next() {
+  private Token next() throws SyntaxException {
     if (pos >= input.length()) {
       return curToken = null;
     }
@@ -223,11 +428,21 @@ public class Parser {
       }
       chr = input.charAt(pos);
     }
+    if (chr == '$' && pos + 1 < input.length() && input.charAt(pos + 1) == '(') {
+      return curToken = this.readSubstitution();
+    }
     switch (chr) {
       case '|':
         pos++;
         return curToken = new Token(Token.Type.Pipe, chr);
       case '<':
+        if (input.startsWith("<<<", pos)) {
+          pos += 3;
+          return curToken = new Token(Token.Type.HereString, "<<<");
+        } else if (input.startsWith("<<", pos)) {
+          pos += 2;
+          return curToken = new Token(Token.Type.HereDocument, "<<");
+        }
         pos++;
         return curToken = new Token(Token.Type.RedirectInput, chr);
       case '(':
@@ -254,12 +469,15 @@ public class Parser {
       case '\'': {
         pos++;
         int startPos = pos;
+        if (pos >= input.length()) {
+          throw new SyntaxException("Unterminated string.", startPos - 1, input);
+        }
         char c = input.charAt(pos);
         char prevC = c;
         while (prevC == '\\' || c != chr) {
           pos++;
           if (pos >= input.length()) {
-            break;
+            throw new SyntaxException("Unterminated string.", startPos - 1, input);
           }
           prevC = c;
           c = input.charAt(pos);
@@ -272,13 +490,18 @@ public class Parser {
         int startPos = pos;
         char c = input.charAt(pos);
         while (c != ' ' && c != '(' && c != ')' && c != '&' && c != '<' && c != '>') {
+          if (c == '$' && pos + 1 < input.length() && input.charAt(pos + 1) == '(') {
+            throw new SyntaxException("Command substitution must be a separate argument.", pos, input);
+          }
           pos++;
           if (pos >= input.length()) {
             break;
           }
           c = input.charAt(pos);
         }
-        return curToken = new Token(Token.Type.String, input.substring(startPos, pos));
+        String value = input.substring(startPos, pos);
+        // Only unquoted words are expanded as glob patterns
+        return curToken = new Token(Glob.isPattern(value) ? Token.Type.Glob : Token.Type.String, value);
       }
     }
   }
@@ -286,18 +509,23 @@ public class Parser {
   static class Token {
     enum Type {
       String, // Sequence of characters, part of a command
+      Glob, // Unquoted sequence of characters containing '*', '?', or '[', expanded into the paths it matches
       Pipe, // '|' Directs one process's output into another's input
       RedirectInput, // '<' Passes a file as input to a process
       RedirectOutput, // '>' Passes a process's output into a file
       RedirectOutputAppend, // '>>' Appends a process's output onto a file
+      HereDocument, // '<<' Passes the following lines, up to a delimiter, as input to a process
+      HereString, // '<<<' Passes a string as input to a process
       ExecuteParallel, // '&' Executes two processes in parallel and returns if they both succeeded
       ExecuteSequential, // '&&' Executes one process then the next, stopping on the first one that fails
       OpenParen, // '(' Open a parenthesized group
       CloseParen, // ')' Close a parenthesized group
+      Substitution, // '$(...)' Replaced by the output of the enclosed command
     }
 
     Type type; // The type of this token
     String value; // The value of this token
+    ProcessNode node; // The enclosed command, for substitution tokens
 
     Token(Type type, String value) {
       this.type = type;
@@ -315,7 +543,18 @@ public class Parser {
      * @return True if this token is a redirect
      */
     boolean isRedirect() {
-      return type == Type.RedirectInput || type == Type.RedirectOutput || type == Type.RedirectOutputAppend;
+      return type == Type.RedirectInput || type == Type.RedirectOutput || type == Type.RedirectOutputAppend
+          || type == Type.HereDocument || type == Type.HereString;
+    }
+
+    /**
+     * Can this token be part of a command?
+     * 
+     * @return True if this token is a string, a glob pattern, or a command
+     *         substitution
+     */
+    boolean isWord() {
+      return type == Type.String || type == Type.Glob || type == Type.Substitution;
     }
 
     /**
@@ -333,6 +572,21 @@ public class Parser {
     }
   }
 
+  /**
+   * A here-document whose body has not been read yet
+   */
+  static class HereDocument {
+    ProcessNode node; // The node taking the here-document as input
+    String delimiter; // The line that ends the body
+    int pos; // Where the here-document is in the input, for errors
+
+    HereDocument(ProcessNode node, String delimiter, int pos) {
+      this.node = node;
+      this.delimiter = delimiter;
+      this.pos = pos;
+    }
+  }
+
   /**
    * Represents an issue with the syntax of the passed input
    */
@@ -1,3 +1,5 @@
+import java.io.OutputStream;
+
 /**
  * Represents a group of commands executed together using "&&" or "&".
  * Needs to be a ProcessNode itself to support things like "(command1 &&
@@ -20,15 +22,56 @@ public class ProcessGroup extends ProcessNode {
   }
 
   @Override
-  protected Executable resolve(Executor executor) {
+  protected Executable resolve(Executor executor, OutputStream terminal) {
     Executable[] executables = new Executable[members.length];
     for (int i = 0; i < members.length; i++) {
-      executables[i] = members[i].execute(executor);
+      executables[i] = members[i].execute(executor, terminal);
+      if (executables[i] == null) {
+        // The member failed to resolve, and has already reported why
+        return null;
+      }
+    }
+    GroupExecutable executable = new GroupExecutable(type, executables);
+    if (type == Type.Parallel && executor.option("keeporder")) {
+      executable.keepOrder();
+      if (terminal != null) {
+        // The group writes out its members' output itself
+        executable.redirectOutput(terminal);
+      }
     }
-    Executable executable = new GroupExecutable(type, executables);
     return executable;
   }
 
+  @Override
+  public boolean changesState() {
+    for (int i = 0; i < members.length; i++) {
+      if (members[i].changesState()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  protected int flattenNode(FlatScript.Builder builder) {
+    int[] memberNodes = new int[members.length];
+    for (int i = 0; i < members.length; i++) {
+      memberNodes[i] = members[i].flatten(builder);
+    }
+    return builder.addGroup(type, memberNodes);
+  }
+
+  @Override
+  protected void buildCommandLine(StringBuilder builder) {
+    String separator = type == Type.Parallel ? " & " : type == Type.Sequential ? " && " : " | ";
+    for (int i = 0; i < members.length; i++) {
+      if (i > 0) {
+        builder.append(separator);
+      }
+      members[i].appendCommandLine(builder, members[i] instanceof ProcessGroup);
+    }
+  }
+
   @Override
   protected void buildString(StringBuilder builder) {
     switch (type) {
@@ -1,3 +1,5 @@
+import java.io.OutputStream;
+
 /**
  * Represents a node in the process tree. This can be given files for input or
  * output, along with being told to run as a background process. Note that only
@@ -5,17 +7,27 @@
  */
 public abstract class ProcessNode {
   private String inputFile; // The file to take input from
+  private byte[] inputData; // Input held in memory, from a here-document or here-string
   private String outputFile; // The file to output to
   private boolean appendOutput; // True to append output to the file, false to overwrite it
   public boolean background; // True to run this process in the background, false to not
+  private long parseNanos; // How long parsing the line this is the root of took, 0 if it isn't a parsed root
 
   /**
    * Resolve this ProcessNode into an Executable
    * 
    * @param executor The Executor of this command
+   * @param terminal Where commands which would write to the terminal write
+   *                 instead, or null for the terminal itself
    * @return An unfinished Executable representing this node
    */
-  protected abstract Executable resolve(Executor executor);
+  protected abstract Executable resolve(Executor executor, OutputStream terminal);
+
+  /**
+   * @return True if running this node could change the state of the executor,
+   *         because it runs a builtin like cd or export
+   */
+  public abstract boolean changesState();
 
   /**
    * Turn this ProcessNode into an Executable, ready to call executable.start()
@@ -24,11 +36,29 @@ public abstract class ProcessNode {
    * @return A finished Executable representing this node
    */
   public Executable execute(Executor executor) {
-    Executable executable = this.resolve(executor);
+    return this.execute(executor, null);
+  }
+
+  /**
+   * Turn this ProcessNode into an Executable, ready to call executable.start(),
+   * with every command which would write to the terminal writing to a stream
+   * instead. Commands which redirect their output, or whose output goes down a
+   * pipe, still write there
+   * 
+   * @param executor The Executor of this command
+   * @param terminal The stream to write to instead of the terminal, or null for
+   *                 the terminal itself. It is given to each of those commands,
+   *                 so closing it must only flush it
+   * @return A finished Executable representing this node
+   */
+  public Executable execute(Executor executor, OutputStream terminal) {
+    Executable executable = this.resolve(executor, terminal);
     if (executable == null)
       return null;
     if (inputFile != null) {
       executable.redirectInput(inputFile);
+    } else if (inputData != null) {
+      executable.redirectInput(inputData);
     }
     if (outputFile != null) {
       executable.redirectOutput(outputFile, appendOutput);
@@ -36,6 +66,26 @@ public abstract class ProcessNode {
     return executable;
   }
 
+  /**
+   * Add this node, and everything below it, to a flat script
+   * 
+   * @param builder The builder of the flat script
+   * @return The index of this node in the flat script
+   */
+  public int flatten(FlatScript.Builder builder) {
+    int node = this.flattenNode(builder);
+    builder.setRedirects(node, inputFile, inputData, outputFile, appendOutput);
+    return node;
+  }
+
+  /**
+   * Add this node, without its redirects, to a flat script
+   * 
+   * @param builder The builder of the flat script
+   * @return The index of this node in the flat script
+   */
+  protected abstract int flattenNode(FlatScript.Builder builder);
+
   /**
    * Set an input file that this node is using
    * 
@@ -43,6 +93,17 @@ public abstract class ProcessNode {
    */
   public void setInput(String file) {
     inputFile = file;
+    inputData = null;
+  }
+
+  /**
+   * Set the input of this node to data held in memory
+   * 
+   * @param data The data to pass as input
+   */
+  public void setInputData(byte[] data) {
+    inputData = data;
+    inputFile = null;
   }
 
   /**
@@ -67,6 +128,62 @@ public abstract class ProcessNode {
     this.background = background;
   }
 
+  /**
+   * @return How long parsing the line this is the root of took, or 0 if it
+   *         wasn't parsed from a line of its own
+   */
+  public long parseNanos() {
+    return parseNanos;
+  }
+
+  /**
+   * @param nanos How long parsing the line this is the root of took
+   */
+  public void setParseNanos(long nanos) {
+    parseNanos = nanos;
+  }
+
+  /**
+   * @return This node written out the way it would be typed, to describe it
+   */
+  public String commandLine() {
+    StringBuilder builder = new StringBuilder();
+    this.appendCommandLine(builder, false);
+    return builder.toString();
+  }
+
+  /**
+   * Write out this node the way it would be typed, with its redirects
+   * 
+   * @param builder     The existing builder
+   * @param parenthesis True to put the node in parentheses, as a group inside
+   *                    another group is
+   */
+  void appendCommandLine(StringBuilder builder, boolean parenthesis) {
+    if (parenthesis) {
+      builder.append('(');
+    }
+    this.buildCommandLine(builder);
+    if (parenthesis) {
+      builder.append(')');
+    }
+    if (inputFile != null) {
+      builder.append(" < ").append(BuiltinExecutable.quote(inputFile));
+    } else if (inputData != null) {
+      builder.append(" <<< (").append(inputData.length).append(" bytes)");
+    }
+    if (outputFile != null) {
+      builder.append(appendOutput ? " >> " : " > ").append(BuiltinExecutable.quote(outputFile));
+    }
+  }
+
+  /**
+   * Write out this node the way it would be typed, without its redirects
+   * 
+   * @param builder The existing builder
+   */
+  protected abstract void buildCommandLine(StringBuilder builder);
+
   /**
    * Construct the string representation of this node
    * 
@@ -82,6 +199,10 @@ public abstract class ProcessNode {
     if (this.inputFile != null) {
       builder.append(" < ");
       builder.append(this.inputFile);
+    } else if (this.inputData != null) {
+      builder.append(" <<< (");
+      builder.append(this.inputData.length);
+      builder.append(" bytes)");
     }
     if (this.outputFile != null) {
       builder.append(' ');
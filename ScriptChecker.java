@@ -0,0 +1,144 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Checks the syntax of a whole script without running it. The script is split
+ * into chunks of lines which are parsed in parallel on a fork-join pool, so
+ * even huge scripts can be checked quickly on a machine with many cores. The
+ * parsed commands are kept as compact flat scripts, so a valid script can be
+ * run without parsing it again.
+ */
+public class ScriptChecker {
+  /**
+   * How many lines are parsed in each chunk
+   */
+  static final int CHUNK_SIZE = 4096;
+
+  /**
+   * Check the syntax of every line of a script
+   * 
+   * @param lines The lines of the script
+   * @return Every syntax error in the script, and the parsed commands
+   */
+  public static Result check(List<String> lines) {
+    Chunk[] chunks = new Chunk[(lines.size() + CHUNK_SIZE - 1) / CHUNK_SIZE];
+    for (int i = 0; i < chunks.length; i++) {
+      chunks[i] = new Chunk(i * CHUNK_SIZE, Math.min(lines.size(), (i + 1) * CHUNK_SIZE));
+    }
+    ForkJoinPool.commonPool().invoke(new CheckTask(lines, chunks, 0, chunks.length));
+    // A here-document can run past the end of its chunk, in which case the
+    // next chunk parsed its body as commands. Parse those chunks again from
+    // where the previous one actually stopped.
+    Result result = new Result();
+    result.scripts = new FlatScript[chunks.length];
+    int stop = 0;
+    for (int i = 0; i < chunks.length; i++) {
+      if (stop > chunks[i].start) {
+        chunks[i] = new Chunk(stop, Math.max(stop, chunks[i].end));
+        chunks[i].parse(lines);
+      }
+      result.errors.addAll(chunks[i].errors);
+      result.scripts[i] = chunks[i].script;
+      stop = chunks[i].stop;
+    }
+    return result;
+  }
+
+  /**
+   * The outcome of checking a script
+   */
+  static class Result {
+    ArrayList<SyntaxError> errors = new ArrayList<>(); // Every syntax error in the script, in order
+    FlatScript[] scripts; // The commands parsed from each chunk of the script, in order
+  }
+
+  /**
+   * A range of lines parsed together
+   */
+  private static class Chunk {
+    int start; // The index of the first line to parse
+    int end; // The index after the last line to start parsing a command at
+    int stop; // The index after the last line actually read, which may be past end
+    ArrayList<SyntaxError> errors = new ArrayList<>(); // The syntax errors in the chunk
+    FlatScript script; // The commands parsed from the chunk
+
+    Chunk(int start, int end) {
+      this.start = start;
+      this.end = end;
+    }
+
+    /**
+     * Parse each command starting in this chunk
+     * 
+     * @param lines The lines of the script
+     */
+    void parse(List<String> lines) {
+      FlatScript.Builder builder = new FlatScript.Builder();
+      LineReader reader = new LineReader(lines, start);
+      while (reader.lineNumber() < end) {
+        String input = reader.nextLine();
+        int number = reader.lineNumber();
+        try {
+          ProcessNode root = new Parser(input, reader).parse();
+          if (root != null) {
+            builder.add(number, root);
+          }
+        } catch (Parser.SyntaxException ex) {
+          errors.add(new SyntaxError(number, ex));
+        } catch (RuntimeException ex) {
+          // Report a bug in the parser as an error on its line, rather than losing
+          // every other error in the script
+          errors.add(new SyntaxError(number, new Parser.SyntaxException("Parsing failed: " + ex, 0, input)));
+        }
+      }
+      stop = reader.lineNumber();
+      script = builder.build();
+    }
+  }
+
+  /**
+   * Parses a range of chunks, splitting it in half until there is one chunk
+   */
+  private static class CheckTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private List<String> lines; // The lines of the script
+    private Chunk[] chunks; // All of the chunks
+    private int from; // The first chunk to parse
+    private int to; // The chunk after the last one to parse
+
+    CheckTask(List<String> lines, Chunk[] chunks, int from, int to) {
+      this.lines = lines;
+      this.chunks = chunks;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= 1) {
+        if (from < to) {
+          chunks[from].parse(lines);
+        }
+        return;
+      }
+      int middle = (from + to) / 2;
+      invokeAll(new CheckTask(lines, chunks, from, middle), new CheckTask(lines, chunks, middle, to));
+    }
+  }
+
+  /**
+   * A syntax error found in a script
+   */
+  static class SyntaxError {
+    int line; // The line number the error is on, starting at 1
+    Parser.SyntaxException error; // The error itself
+
+    SyntaxError(int line, Parser.SyntaxException error) {
+      this.line = line;
+      this.error = error;
+    }
+  }
+}
@@ -0,0 +1,132 @@
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads and parses the lines of a script ahead of them being executed. A
+ * thread reads and parses upcoming lines into a bounded queue while the
+ * current line runs, so reading and parsing overlap with execution. Lines come
+ * out of the queue in order, including those with syntax errors, so errors are
+ * still reported in the right place. Lines are handed over in chunks to keep
+ * the cost of passing them between threads down, but a chunk is never held
+ * back waiting for input that isn't available yet.
+ */
+public class ScriptReader implements Closeable {
+  /**
+   * How many chunks of parsed lines can be waiting to be executed
+   */
+  static final int QUEUE_SIZE = 16;
+
+  /**
+   * The most lines in each chunk
+   */
+  static final int CHUNK_SIZE = 64;
+
+  private static final ArrayList<Line> END = new ArrayList<>(); // Marks the end of the script in the queue
+
+  private LineReader lines; // The lines of the script
+  private BlockingQueue<ArrayList<Line>> queue = new ArrayBlockingQueue<>(QUEUE_SIZE); // Chunks not yet taken
+  private Iterator<Line> chunk; // The lines left in the chunk being executed
+  private Thread parser; // The thread reading and parsing ahead
+  private boolean finished; // True once the end of the script has been taken from the queue
+
+  /**
+   * Create a script reader and start reading ahead
+   * 
+   * @param lines The lines of the script
+   */
+  public ScriptReader(LineReader lines) {
+    this.lines = lines;
+    parser = new Thread(this::readAhead);
+    parser.setDaemon(true);
+    parser.start();
+  }
+
+  /**
+   * Read and parse lines into the queue until the end of the script, or until
+   * interrupted by close()
+   */
+  private void readAhead() {
+    try {
+      ArrayList<Line> chunk = new ArrayList<>(CHUNK_SIZE);
+      String input;
+      while ((input = lines.nextLine()) != null) {
+        int number = lines.lineNumber();
+        Parser parser = new Parser(input, lines);
+        try {
+          ProcessNode root = parser.parse();
+          if (root != null) {
+            chunk.add(new Line(number, root, null));
+          }
+        } catch (Parser.SyntaxException ex) {
+          chunk.add(new Line(number, null, ex));
+        } catch (RuntimeException ex) {
+          // A bug in the parser mustn't leave next() waiting forever, so report
+          // the line and end the script there
+          chunk.add(new Line(number, null, new Parser.SyntaxException("Parsing failed: " + ex, 0, input)));
+          break;
+        }
+        if (!chunk.isEmpty() && (chunk.size() == CHUNK_SIZE || !lines.ready())) {
+          queue.put(chunk);
+          chunk = new ArrayList<>(CHUNK_SIZE);
+        }
+      }
+      if (!chunk.isEmpty()) {
+        queue.put(chunk);
+      }
+      queue.put(END);
+    } catch (InterruptedException ex) {
+      // We've been closed, nothing left to do
+    }
+  }
+
+  /**
+   * Get the next line of the script, waiting for it to be parsed if need be
+   * 
+   * @return The next line, or null at the end of the script
+   */
+  public Line next() {
+    while (chunk == null || !chunk.hasNext()) {
+      if (finished) {
+        return null;
+      }
+      ArrayList<Line> next;
+      try {
+        next = queue.take();
+      } catch (InterruptedException ex) {
+        return null;
+      }
+      if (next == END) {
+        finished = true;
+        return null;
+      }
+      chunk = next.iterator();
+    }
+    return chunk.next();
+  }
+
+  /**
+   * Stop reading ahead, for when the script won't be run to the end
+   */
+  @Override
+  public void close() {
+    parser.interrupt();
+  }
+
+  /**
+   * A parsed line of the script
+   */
+  static class Line {
+    int number; // The line number in the script, starting at 1
+    ProcessNode root; // The root of the parsed command, null if there was a syntax error
+    Parser.SyntaxException error; // The syntax error in the line, if there was one
+
+    Line(int number, ProcessNode root, Parser.SyntaxException error) {
+      this.number = number;
+      this.root = root;
+      this.error = error;
+    }
+  }
+}
@@ -0,0 +1,142 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Lets several executables running in parallel share one output target. Each
+ * one writes to its own stream from newWriter(), which collects output and
+ * passes it on a whole line at a time, so lines from different writers never
+ * get mixed together. The target is closed once every writer has been closed.
+ */
+public class SharedAppender {
+  /**
+   * The longest a line can get before it is written out without waiting for the
+   * end of the line
+   */
+  static final int MAX_LINE_LENGTH = 1 << 16;
+
+  private WritableByteChannel target; // Where all of the output ends up
+  private int openWriters; // How many writers have not been closed yet
+
+  /**
+   * Create an appender writing to a file, which is opened only once no matter how
+   * many writers there are
+   *
+   * @param file   The file to write to
+   * @param append True to append to an existing file, false to overwrite
+   * @throws IOException If the file can't be opened
+   */
+  public SharedAppender(String file, boolean append) throws IOException {
+    target = FileChannel.open(Paths.get(file), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING);
+  }
+
+  /**
+   * Create an appender writing to a stream
+   *
+   * @param stream The stream to write to
+   */
+  public SharedAppender(OutputStream stream) {
+    target = Channels.newChannel(stream);
+  }
+
+  /**
+   * Create a stream for one of the executables sharing the target
+   *
+   * @return A stream which writes to the target one line at a time
+   */
+  public synchronized OutputStream newWriter() {
+    openWriters++;
+    return new LineWriter();
+  }
+
+  /**
+   * Write to the target, keeping writes from different writers separate
+   *
+   * @param bytes  The bytes to write
+   * @param length How many bytes to write
+   * @throws IOException If writing to the target fails
+   */
+  private synchronized void write(byte[] bytes, int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, length);
+    while (buffer.hasRemaining()) {
+      target.write(buffer);
+    }
+  }
+
+  /**
+   * Called when a writer is closed, closes the target after the last one
+   *
+   * @throws IOException If closing the target fails
+   */
+  private synchronized void writerClosed() throws IOException {
+    openWriters--;
+    if (openWriters == 0) {
+      target.close();
+    }
+  }
+
+  /**
+   * The stream given to each executable, which holds on to output until it has a
+   * whole line
+   */
+  private class LineWriter extends OutputStream {
+    private byte[] line = new byte[256]; // Output not yet written to the target
+    private int count; // How many bytes of line are in use
+    private boolean closed; // True once this writer has been closed
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+      if (count + length > line.length) {
+        line = Arrays.copyOf(line, Math.max(line.length * 2, count + length));
+      }
+      System.arraycopy(bytes, offset, line, count, length);
+      count += length;
+      // Pass on everything up to the last complete line. Whatever was held before
+      // has no line break in it, so only the new bytes need checking
+      int end = count;
+      while (end > count - length && line[end - 1] != '\n') {
+        end--;
+      }
+      if (end == count - length) {
+        end = 0;
+      }
+      if (end == 0 && count >= MAX_LINE_LENGTH) {
+        // Don't hold on to a runaway line forever
+        end = count;
+      }
+      if (end > 0) {
+        SharedAppender.this.write(line, end);
+        System.arraycopy(line, end, line, 0, count - end);
+        count -= end;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      try {
+        if (count > 0) {
+          SharedAppender.this.write(line, count);
+          count = 0;
+        }
+      } finally {
+        writerClosed();
+      }
+    }
+  }
+}
@@ -0,0 +1,135 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The Java Flight Recorder events the shell emits, so a recording shows where
+ * the time of each command went: parsing it, resolving each member, starting
+ * each process, running each builtin, each stage of a group, and writing the
+ * history. Every event is a duration, begun before the work and committed after
+ * it, and the fields are only filled in if shouldCommit() says the event will
+ * be kept.
+ *
+ * Using the first event class costs the JVM around 300 milliseconds of setting
+ * up, even when nothing is recording, which would more than double the time the
+ * shell takes to start. So events are only created once the flight recorder
+ * has been started, either when the shell was launched or later on with jcmd,
+ * and until then each place that emits an event just checks a flag.
+ */
+public class ShellEvents {
+  /**
+   * The most characters of a command kept in an event
+   */
+  static final int MAX_COMMAND = 256;
+
+  /**
+   * True once the flight recorder has been started, so events should be
+   * created
+   */
+  static volatile boolean enabled = FlightRecorder.isInitialized();
+
+  static {
+    if (!enabled) {
+      // Adding the listener takes a few tens of milliseconds, so do it in the
+      // background rather than holding up the first command
+      Thread watcher = new Thread(() -> FlightRecorder.addListener(new FlightRecorderListener() {
+        @Override
+        public void recorderInitialized(FlightRecorder recorder) {
+          enabled = true;
+        }
+      }), "jfr-watcher");
+      watcher.setDaemon(true);
+      watcher.start();
+    }
+  }
+
+  /**
+   * @param command A command
+   * @return The command, cut short if it is longer than MAX_COMMAND
+   */
+  static String truncate(String command) {
+    return command.length() <= MAX_COMMAND ? command : command.substring(0, MAX_COMMAND) + "...";
+  }
+
+  @Name("jsh.Parse")
+  @Label("Parse")
+  @Category("Shell")
+  @Description("Parsing a command line into a process tree")
+  static class Parse extends Event {
+    @Label("Command")
+    String command; // The command line
+
+    @Label("Succeeded")
+    boolean succeeded; // False if it had a syntax error
+  }
+
+  @Name("jsh.Resolve")
+  @Label("Resolve")
+  @Category("Shell")
+  @Description("Finding the builtin or file to run for a command")
+  static class Resolve extends Event {
+    @Label("Command")
+    String command; // The command and its arguments
+
+    @Label("Resolved To")
+    String resolved; // The path of the file, "builtin", or null if it wasn't found
+  }
+
+  @Name("jsh.Spawn")
+  @Label("Spawn")
+  @Category("Shell")
+  @Description("Starting a process")
+  static class Spawn extends Event {
+    @Label("Command")
+    String command; // The command and its arguments
+
+    @Label("PID")
+    long pid; // The id of the process, 0 if it failed to start
+  }
+
+  @Name("jsh.Builtin")
+  @Label("Builtin")
+  @Category("Shell")
+  @Description("Running a builtin command")
+  static class Builtin extends Event {
+    @Label("Command")
+    String command; // The command and its arguments
+
+    @Label("Exit Code")
+    int exitCode; // The exit code of the builtin
+  }
+
+  @Name("jsh.GroupStage")
+  @Label("Group Stage")
+  @Category("Shell")
+  @Description("One member of a pipeline, sequence, or parallel group, from starting it until it finished")
+  static class GroupStage extends Event {
+    @Label("Group Type")
+    String groupType; // Pipe, Sequential, or Parallel
+
+    @Label("Index")
+    int index; // The position of the member in the group
+
+    @Label("Member")
+    String member; // What the member runs
+
+    @Label("Exit Code")
+    int exitCode; // The exit code of the member
+  }
+
+  @Name("jsh.HistoryWrite")
+  @Label("History Write")
+  @Category("Shell")
+  @Description("Writing a command to the history, or flushing the history to its file")
+  static class HistoryWrite extends Event {
+    @Label("Flush")
+    boolean flush; // True for a flush, false for a write
+
+    @Label("Characters")
+    int characters; // How many characters were written
+  }
+}
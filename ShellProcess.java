@@ -1,4 +1,7 @@
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 /**
  * Represents a process that is run on the command line. The main part of the
@@ -7,6 +10,8 @@ import java.util.Arrays;
 public class ShellProcess extends ProcessNode {
   String command;
   String[] arguments;
+  ProcessNode[] substitutions; // Command substitutions by position (0 is the command), or null if there are none
+  boolean[] globs; // Which words are glob patterns by position (0 is the command), or null if there are none
 
   /**
    * Construct a ShellProcess
@@ -19,18 +24,165 @@ public class ShellProcess extends ProcessNode {
     arguments = Arrays.copyOfRange(args, 1, args.length);
   }
 
+  /**
+   * Construct a ShellProcess where some of the arguments are command
+   * substitutions
+   * 
+   * @param args          All of the arguments provided on the command line,
+   *                      including the command itself
+   * @param substitutions The command to substitute for each argument, or null for
+   *                      arguments that are used as is
+   */
+  public ShellProcess(String[] args, ProcessNode[] substitutions) {
+    this(args);
+    this.substitutions = substitutions;
+  }
+
+  /**
+   * Construct a ShellProcess where some of the arguments are command
+   * substitutions or glob patterns
+   * 
+   * @param args          All of the arguments provided on the command line,
+   *                      including the command itself
+   * @param substitutions The command to substitute for each argument, or null if
+   *                      there are none
+   * @param globs         Whether each argument is a glob pattern, or null if
+   *                      there are none
+   */
+  public ShellProcess(String[] args, ProcessNode[] substitutions, boolean[] globs) {
+    this(args, substitutions);
+    this.globs = globs;
+  }
+
   @Override
-  protected Executable resolve(Executor executor) {
+  protected Executable resolve(Executor executor, OutputStream terminal) {
+    String cmd = command;
+    String[] args = arguments;
     Executable executable;
     try {
-      executable = executor.resolveCommand(command, arguments);
+      if (substitutions != null || globs != null) {
+        String[] expanded = this.expandWords(executor);
+        if (expanded.length == 0) {
+          throw new Executor.ExecutionException("Command substitution produced an empty command.");
+        }
+        cmd = expanded[0];
+        args = Arrays.copyOfRange(expanded, 1, expanded.length);
+      }
+      executable = executor.resolveCommand(cmd, args);
     } catch (Executor.ExecutionException ex) {
-      System.out.println("ERROR: " + ex.getMessage());
+      ConsoleSink.OUT.println("ERROR: " + ex.getMessage());
       return null;
     }
+    if (terminal != null) {
+      // Only set when there's an output limit. An external command then writes
+      // to a pipe, copied to the terminal by a thread of its own, rather than
+      // to the terminal itself. A redirect of this command's own or of its
+      // group, or a pipe, replaces this afterwards
+      executable.redirectOutput(terminal);
+    }
     return executable;
   }
 
+  /**
+   * Run each command substitution and split its output into arguments, the same
+   * way the words on the command line are split, and replace each glob pattern
+   * with the paths it matches
+   * 
+   * @param executor The Executor of this command
+   * @throws Executor.ExecutionException If a substituted command fails to run
+   * @return All of the arguments, including the command itself
+   */
+  private String[] expandWords(Executor executor) throws Executor.ExecutionException {
+    ArrayList<String> expanded = new ArrayList<>();
+    for (int i = 0; i <= arguments.length; i++) {
+      String word = i == 0 ? command : arguments[i - 1];
+      if (substitutions != null && substitutions[i] != null) {
+        splitWords(executor.capture(substitutions[i]), expanded);
+      } else if (globs != null && globs[i]) {
+        expandGlob(word, executor.pwd(), expanded);
+      } else {
+        expanded.add(word);
+      }
+    }
+    return expanded.toArray(new String[0]);
+  }
+
+  /**
+   * Expand a glob pattern into the paths it matches. Like other shells, a
+   * pattern matching nothing is left as it is
+   * 
+   * @param pattern The pattern
+   * @param cwd     The directory relative patterns start in
+   * @param words   The list to add the paths to
+   */
+  static void expandGlob(String pattern, String cwd, ArrayList<String> words) {
+    List<String> matches = Glob.expand(pattern, cwd);
+    if (matches.isEmpty()) {
+      words.add(pattern);
+    } else {
+      words.addAll(matches);
+    }
+  }
+
+  /**
+   * Split the output of a command substitution into arguments
+   * 
+   * @param output The output of the command
+   * @param words  The list to add the arguments to
+   */
+  static void splitWords(String output, ArrayList<String> words) {
+    output = output.strip();
+    if (!output.isEmpty()) {
+      words.addAll(Arrays.asList(output.split("\\s+")));
+    }
+  }
+
+  @Override
+  public boolean changesState() {
+    if (BuiltinExecutable.STATE_BUILTINS.contains(command)) {
+      return true;
+    }
+    // Command substitutions run with the same executor
+    for (int i = 0; substitutions != null && i < substitutions.length; i++) {
+      if (substitutions[i] != null && substitutions[i].changesState()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  protected int flattenNode(FlatScript.Builder builder) {
+    String[] words = new String[arguments.length + 1];
+    words[0] = command;
+    System.arraycopy(arguments, 0, words, 1, arguments.length);
+    int[] substitutionNodes = null;
+    if (substitutions != null) {
+      substitutionNodes = new int[substitutions.length];
+      for (int i = 0; i < substitutions.length; i++) {
+        substitutionNodes[i] = substitutions[i] == null ? -1 : substitutions[i].flatten(builder);
+      }
+    }
+    return builder.addCommand(words, substitutionNodes, globs);
+  }
+
+  @Override
+  protected void buildCommandLine(StringBuilder builder) {
+    for (int i = 0; i <= arguments.length; i++) {
+      if (i > 0) {
+        builder.append(' ');
+      }
+      String word = i == 0 ? command : arguments[i - 1];
+      if (substitutions != null && substitutions[i] != null) {
+        builder.append("$(").append(substitutions[i].commandLine()).append(')');
+      } else if (globs != null && globs[i]) {
+        builder.append(word);
+      } else {
+        builder.append(BuiltinExecutable.quote(word));
+      }
+    }
+  }
+
   @Override
   protected void buildString(StringBuilder builder) {
     builder.append(command);
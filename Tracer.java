@@ -0,0 +1,376 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records when every command starts and finishes, for the trace builtin, and
+ * writes it out in the Chrome trace-event format so a run can be loaded into
+ * chrome://tracing or Perfetto to see which commands overlapped and which waited
+ * on each other.
+ *
+ * Each executable made while tracing gets a span, and a group adopts the spans
+ * of its members, so the spans form the same tree as the command. Processes and
+ * builtins record their own start and finish, and a group lasts from when it
+ * started until its last member finished. Once the executable at the top of a
+ * tree has finished, the whole tree is handed to a background thread which lays
+ * it out and writes it, so tracing never waits for the disk. In the trace each
+ * command is a row: the members of a pipeline or && chain sit inside their
+ * group on its row, while the members of a parallel group each get a row of
+ * their own, since they overlap.
+ */
+public class Tracer {
+  private static volatile Tracer current; // The trace being recorded, null if none is
+
+  private File file; // The file the trace is written to
+  private BufferedWriter out; // Writes the trace, only used on the writer thread
+  private long origin = System.nanoTime(); // When tracing started, which is time 0 in the trace
+  private long shellPid = ProcessHandle.current().pid(); // The id of the shell's process, the pid of every event
+  private Map<Executable, Span> spans = new WeakHashMap<>(); // The span of every executable yet to be written
+  private long[] rowEnds = new long[16]; // When the last thing on each row of the trace finished
+  private int rowCount; // How many rows the trace has
+  private IOException failure; // The first error writing the trace, only used on the writer thread
+  private ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "trace-writer");
+    thread.setDaemon(true);
+    return thread;
+  }); // Lays out and writes each finished tree, one at a time
+
+  /**
+   * Create a trace, opening the file it is written to
+   *
+   * @param file The file to write the trace to
+   * @throws IOException If the file can't be written
+   */
+  private Tracer(File file) throws IOException {
+    this.file = file;
+    out = new BufferedWriter(new FileWriter(file));
+    out.write("[\n");
+    out.write("{\"name\":\"process_name\",\"ph\":\"M\",\"pid\":" + shellPid + ",\"args\":{\"name\":\"shell\"}}");
+  }
+
+  /**
+   * @return The trace being recorded, or null if none is
+   */
+  public static Tracer current() {
+    return current;
+  }
+
+  /**
+   * Start recording a trace, finishing the one being recorded if there is one.
+   * The new trace starts even if finishing the old one fails
+   *
+   * @param file The file to write the trace to
+   * @throws IOException          If the file can't be written, or finishing
+   *                              the old trace failed
+   * @throws InterruptedException If interrupted while waiting for the old trace
+   *                              to be written, which carries on regardless
+   */
+  public static synchronized void start(File file) throws IOException, InterruptedException {
+    Tracer tracer = new Tracer(file);
+    try {
+      stop();
+    } finally {
+      current = tracer;
+    }
+  }
+
+  /**
+   * Stop recording the trace, waiting for everything that has finished to be
+   * written out and the file to be closed. Commands still running are left out
+   *
+   * @return The file the trace was written to, or null if none was being
+   *         recorded
+   * @throws IOException          If writing the trace failed
+   * @throws InterruptedException If interrupted while waiting for the trace to
+   *                              be written, which carries on regardless
+   */
+  public static synchronized File stop() throws IOException, InterruptedException {
+    Tracer tracer = current;
+    if (tracer == null) {
+      return null;
+    }
+    current = null;
+    tracer.writer.execute(tracer::close);
+    tracer.writer.shutdown();
+    // Commands can finish faster than their trees are written, so however long
+    // the rest takes, the file isn't finished until it has been written
+    tracer.writer.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    if (tracer.failure != null) {
+      throw new IOException("Writing " + tracer.file.getPath() + " failed: " + tracer.failure.getMessage(),
+          tracer.failure);
+    }
+    return tracer.file;
+  }
+
+  /**
+   * Give an executable a span, so it is traced
+   *
+   * @param executable The executable
+   * @param name       What it runs
+   * @param group      True if it is a group, which lasts until its members have
+   *                   finished, rather than recording its own finish
+   * @param parallel   True if it is a group whose members run at the same time
+   */
+  public synchronized void add(Executable executable, String name, boolean group, boolean parallel) {
+    spans.put(executable, new Span(name, group, parallel));
+  }
+
+  /**
+   * Make the spans of a group's members part of the group's span
+   *
+   * @param group   The group
+   * @param members The members of the group, in order
+   */
+  public synchronized void adopt(Executable group, Executable[] members) {
+    Span parent = spans.get(group);
+    if (parent == null) {
+      return;
+    }
+    for (Executable member : members) {
+      Span child = spans.get(member);
+      if (child != null) {
+        child.parent = parent;
+        parent.children.add(child);
+      }
+    }
+  }
+
+  /**
+   * Record that an executable has started
+   *
+   * @param executable The executable
+   * @param start      When it started, from System.nanoTime()
+   * @param pid        The id of the process it started, or 0 if it isn't a
+   *                   process
+   */
+  public synchronized void started(Executable executable, long start, long pid) {
+    Span span = spans.get(executable);
+    if (span != null && span.start == 0) {
+      span.start = start;
+      span.pid = pid;
+      span.thread = Thread.currentThread().getName();
+    }
+  }
+
+  /**
+   * Record that an executable has finished. The first time this is called for
+   * the executable at the top of a tree, the tree is written out
+   *
+   * @param executable The executable
+   * @param exitValue  Its exit value, if it has one
+   */
+  public void finished(Executable executable, Optional<Integer> exitValue) {
+    Span root;
+    synchronized (this) {
+      Span span = spans.get(executable);
+      if (span == null || span.end != 0) {
+        return;
+      }
+      span.end = System.nanoTime();
+      span.exit = exitValue.orElse(-1);
+      if (span.parent != null) {
+        return;
+      }
+      root = span;
+      spans.remove(executable);
+    }
+    try {
+      writer.execute(() -> this.write(root));
+    } catch (RejectedExecutionException ex) {
+      // Tracing has stopped
+    }
+  }
+
+  /**
+   * Lay out a finished tree and write it, on the writer thread
+   *
+   * @param root The span at the top of the tree
+   */
+  private void write(Span root) {
+    synchronized (this) {
+      // Members which were never started aren't shown, and a group finishes
+      // with its last member
+      root.settle(root.end);
+    }
+    if (root.start == 0) {
+      return;
+    }
+    try {
+      this.write(root, this.freeRow(root.start, root.end));
+    } catch (IOException ex) {
+      // Keep going, the rest of the trace may still be useful
+      if (failure == null) {
+        failure = ex;
+      }
+    }
+  }
+
+  /**
+   * Write a span and everything below it
+   *
+   * @param span The span
+   * @param row  The row to put it on
+   * @throws IOException If writing fails
+   */
+  private void write(Span span, int row) throws IOException {
+    StringBuilder event = new StringBuilder(",\n{\"name\":");
+    appendString(event, span.name);
+    event.append(",\"cat\":\"").append(span.group ? "group" : span.pid == 0 ? "builtin" : "process");
+    event.append("\",\"ph\":\"X\",\"ts\":").append(micros(span.start - origin));
+    event.append(",\"dur\":").append(micros(span.end - span.start));
+    event.append(",\"pid\":").append(shellPid).append(",\"tid\":").append(row);
+    event.append(",\"args\":{\"exit\":").append(span.exit);
+    if (span.pid != 0) {
+      event.append(",\"pid\":").append(span.pid);
+    }
+    if (span.thread != null) {
+      event.append(",\"thread\":");
+      appendString(event, span.thread);
+    }
+    event.append("}}");
+    out.write(event.toString());
+    boolean first = true;
+    for (Span child : span.children) {
+      if (child.start == 0) {
+        continue;
+      }
+      // Members of a parallel group overlap, so each after the first needs a row
+      // of its own
+      this.write(child, span.parallel && !first ? this.freeRow(child.start, child.end) : row);
+      first = false;
+    }
+  }
+
+  /**
+   * Find the first row whose last span finished by the start of a length of
+   * time, and take that time up. Only the end of each row is kept, so finding a
+   * row takes as long as there are rows however long the trace gets, at the cost
+   * of never filling a gap left earlier on a row
+   *
+   * @param start The start of the time
+   * @param end   The end of the time
+   * @return The row
+   * @throws IOException If naming a new row fails
+   */
+  private int freeRow(long start, long end) throws IOException {
+    for (int i = 0; i < rowCount; i++) {
+      if (rowEnds[i] <= start) {
+        rowEnds[i] = end;
+        return i + 1;
+      }
+    }
+    if (rowCount == rowEnds.length) {
+      rowEnds = Arrays.copyOf(rowEnds, rowCount * 2);
+    }
+    rowEnds[rowCount++] = end;
+    int row = rowCount;
+    out.write(",\n{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":" + shellPid + ",\"tid\":" + row
+        + ",\"args\":{\"name\":\"commands " + row + "\"}}");
+    return row;
+  }
+
+  /**
+   * End the trace and close the file, on the writer thread
+   */
+  private void close() {
+    try (BufferedWriter writer = out) {
+      writer.write("\n]\n");
+    } catch (IOException ex) {
+      if (failure == null) {
+        failure = ex;
+      }
+    }
+  }
+
+  /**
+   * @param nanos A time in nanoseconds
+   * @return The time in microseconds, which trace events use
+   */
+  private static String micros(long nanos) {
+    return String.format(Locale.ROOT, "%.3f", nanos / 1e3);
+  }
+
+  /**
+   * Append a string to some JSON, quoted and escaped
+   *
+   * @param json   The JSON
+   * @param string The string
+   */
+  static void appendString(StringBuilder json, String string) {
+    json.append('"');
+    for (int i = 0; i < string.length(); i++) {
+      char c = string.charAt(i);
+      if (c == '"' || c == '\\') {
+        json.append('\\').append(c);
+      } else if (c < 0x20) {
+        json.append(String.format("\\u%04x", (int) c));
+      } else {
+        json.append(c);
+      }
+    }
+    json.append('"');
+  }
+
+  /**
+   * When one executable ran, and the spans of the members if it is a group
+   */
+  private static class Span {
+    String name; // What it runs
+    boolean group; // True if it is a group, which lasts until its last member finished
+    boolean parallel; // True if it is a group whose members run at the same time
+    Span parent; // The span of the group it is a member of, null if it is at the top
+    List<Span> children = new ArrayList<>(); // The spans of its members, in order
+    long start; // When it started, from System.nanoTime(), 0 if it never started
+    long end; // When it finished, from System.nanoTime(), 0 until then
+    long pid; // The id of the process it started, 0 if it isn't a process
+    String thread; // The name of the thread which started it
+    int exit = -1; // Its exit value, -1 if it has none
+
+    Span(String name, boolean group, boolean parallel) {
+      this.name = name;
+      this.group = group;
+      this.parallel = parallel;
+    }
+
+    /**
+     * Fill in the finish of every group below this from its members, and the
+     * finish of anything which was left running from when the tree finished
+     *
+     * @param treeEnd When the top of the tree finished
+     */
+    void settle(long treeEnd) {
+      long lastEnd = 0;
+      int firstFailure = 0; // A group fails with its first member that failed
+      for (Span child : children) {
+        if (child.start == 0) {
+          continue;
+        }
+        child.settle(treeEnd);
+        lastEnd = Math.max(lastEnd, child.end);
+        if (firstFailure == 0) {
+          firstFailure = child.exit;
+        }
+      }
+      if (group && exit == -1) {
+        exit = firstFailure;
+      }
+      if (group && lastEnd != 0) {
+        end = lastEnd;
+      } else if (end == 0) {
+        end = treeEnd;
+      }
+    }
+  }
+}
@@ -19,11 +19,12 @@ public class Utilities {
      * 
      * @param userInput treated as an attempt by the user to enter a file name but
      *                  was not found or does not exist
+     * @param path      the PATH to look for existing files in
      * @return didYouMean a string containg the names of 5 existing files in PATH
      *         that are determined to be the closest matches to userInput
      */
-    public static String findBestMatch(String userInput) {
-        String path = System.getenv("PATH");
+    public static String findBestMatch(String userInput, String path) {
+        long start = System.nanoTime();
         String[] splitPath = path.split(":"); // string array of all directories in the PATH env
         fileSet = new HashSet<>();
         parseDir(splitPath); // build the string set of each file name
@@ -31,6 +32,7 @@ public class Utilities {
         smallestLevDists = new int[smallestLevFiles.length];
         getLevDists(userInput);
         String didYouMean = buildFileString();
+        Metrics.SUGGEST.recordSince(start);
         return didYouMean;
     }
 
@@ -0,0 +1,95 @@
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Kills commands which run for too long. Every watched command is scheduled on
+ * one shared timer thread, so watching a command doesn't cost a thread of its
+ * own, and cancelling the watch once the command finishes takes it off the
+ * timer straight away. When a command's time is up it is destroyed, which kills
+ * external processes along with every process they started.
+ */
+public class Watchdog {
+  private static final ScheduledThreadPoolExecutor timer = createTimer(); // Runs every deadline
+
+  /**
+   * @return The timer, with a single daemon thread which forgets cancelled
+   *         deadlines straight away
+   */
+  private static ScheduledThreadPoolExecutor createTimer() {
+    ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+      Thread thread = new Thread(runnable, "watchdog");
+      thread.setDaemon(true);
+      return thread;
+    });
+    timer.setRemoveOnCancelPolicy(true);
+    return timer;
+  }
+
+  /**
+   * Destroy a command if it is still running after a time limit
+   *
+   * @param executable The command, which has been started
+   * @param millis     The time limit, in milliseconds
+   * @return The watch, which should be cancelled once the command finishes
+   */
+  public static Watch watch(Executable executable, long millis) {
+    Watch watch = new Watch();
+    watch.deadline = timer.schedule(() -> {
+      watch.fired = true;
+      executable.destroy();
+    }, millis, TimeUnit.MILLISECONDS);
+    return watch;
+  }
+
+  /**
+   * Parse a duration, which is a number followed by "ms", "s", "m", or "h", or
+   * seconds if there's no unit
+   *
+   * @param duration The duration
+   * @return The duration in milliseconds, or -1 if it isn't a valid duration
+   */
+  public static long parseDuration(String duration) {
+    long unit = 1000;
+    String number = duration;
+    if (duration.endsWith("ms")) {
+      unit = 1;
+      number = duration.substring(0, duration.length() - 2);
+    } else if (duration.endsWith("s")) {
+      number = duration.substring(0, duration.length() - 1);
+    } else if (duration.endsWith("m")) {
+      unit = 60 * 1000;
+      number = duration.substring(0, duration.length() - 1);
+    } else if (duration.endsWith("h")) {
+      unit = 60 * 60 * 1000;
+      number = duration.substring(0, duration.length() - 1);
+    }
+    try {
+      double value = Double.parseDouble(number);
+      if (value <= 0 || Double.isNaN(value) || Double.isInfinite(value)) {
+        return -1;
+      }
+      return Math.max(1, (long) (value * unit));
+    } catch (NumberFormatException ex) {
+      return -1;
+    }
+  }
+
+  /**
+   * A command being watched
+   */
+  public static class Watch {
+    private ScheduledFuture<?> deadline; // When the command is destroyed
+    private volatile boolean fired; // True once the command has been destroyed for running too long
+
+    /**
+     * Stop watching the command, because it has finished
+     *
+     * @return True if the command was destroyed for running too long
+     */
+    public boolean cancel() {
+      deadline.cancel(false);
+      return fired;
+    }
+  }
+}